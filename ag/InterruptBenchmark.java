@@ -0,0 +1,67 @@
+package nachos.ag;
+
+import nachos.machine.*;
+import nachos.security.*;
+import nachos.threads.*;
+
+/**
+ * An autograder that measures how quickly the interrupt controller schedules
+ * and dispatches interrupts. It keeps <tt>InterruptBenchmark.numPending</tt>
+ * interrupts pending, each of which schedules itself again at a random delay
+ * when it is dispatched, as the timer and the devices do. Simulated time is
+ * advanced straight to the next pending interrupt each step, so the time
+ * measured is spent almost entirely in the interrupt controller.
+ *
+ * <p>
+ * To use it, run <tt>nachos -- nachos.ag.InterruptBenchmark</tt>. It times
+ * <tt>InterruptBenchmark.numDispatches</tt> dispatches, after the same
+ * number of warm-up dispatches.
+ */
+public class InterruptBenchmark extends AutoGrader {
+	void run() {
+		int numPending = Config.getInteger("InterruptBenchmark.numPending", 64);
+		numDispatches = Config.getInteger("InterruptBenchmark.numDispatches",
+				2000000);
+		Lib.assertTrue(numPending > 0 && numDispatches > 0);
+
+		for (int i = 0; i < numPending; i++)
+			reschedule();
+
+		// warm up, so the JIT has compiled the interrupt controller
+		dispatch();
+
+		long start = System.nanoTime();
+		dispatch();
+		long elapsed = System.nanoTime() - start;
+
+		System.out.println("InterruptBenchmark: " + numDispatches
+				+ " dispatches with " + numPending + " pending in "
+				+ (elapsed / 1000000) + " ms ("
+				+ (numDispatches * 1000000000L / Math.max(elapsed, 1))
+				+ " schedule/dispatch pairs per second)");
+
+		kernel.terminate();
+	}
+
+	private void dispatch() {
+		for (dispatched = 0; dispatched < numDispatches;) {
+			long ticks = privilege.interrupt.userTicksUntilDue();
+			privilege.interrupt.tickUser((int) Math.min(ticks,
+					Integer.MAX_VALUE));
+		}
+	}
+
+	private void reschedule() {
+		privilege.interrupt.schedule(Lib.random(1000) + 1, "benchmark",
+				handler);
+	}
+
+	private Runnable handler = new Runnable() {
+		public void run() {
+			dispatched++;
+			reschedule();
+		}
+	};
+
+	private int numDispatches, dispatched;
+}
@@ -178,7 +178,6 @@ public class CoffSection {
 		Lib.assertTrue(ppn >= 0 && ppn < Machine.processor().getNumPhysPages());
 
 		int pageSize = Processor.pageSize;
-		byte[] memory = Machine.processor().getMemory();
 		int paddr = ppn * pageSize;
 		int faddr = contentOffset + spn * pageSize;
 		int initlen;
@@ -190,10 +189,20 @@ public class CoffSection {
 		else
 			initlen = pageSize;
 
+		// take the buffer while in use, in case reading the file blocks and
+		// another thread loads a page of this section meanwhile
+		byte[] page = pageBuffer;
+		pageBuffer = null;
+		if (page == null)
+			page = new byte[pageSize];
+
 		if (initlen > 0)
-			Lib.strictReadFile(file, faddr, memory, paddr, initlen);
+			Lib.strictReadFile(file, faddr, page, 0, initlen);
+
+		Arrays.fill(page, initlen, pageSize, (byte) 0);
+		Machine.processor().writePhysMemory(paddr, page, 0, pageSize);
 
-		Arrays.fill(memory, paddr + initlen, paddr + pageSize, (byte) 0);
+		pageBuffer = page;
 	}
 
 	/** The COFF object to which this section belongs. */
@@ -221,6 +230,9 @@ public class CoffSection {
 
 	private int contentOffset, size;
 
+	/** A page-sized buffer reused by <tt>loadPage()</tt>, if not in use. */
+	private byte[] pageBuffer = null;
+
 	/** The length of a COFF section header. */
 	public static final int headerLength = 40;
 
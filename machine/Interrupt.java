@@ -4,9 +4,7 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.util.Arrays;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -52,7 +50,16 @@ public final class Interrupt {
 		privilege.interrupt = new InterruptPrivilege();
 
 		enabled = false;
-		pending = new TreeSet<PendingInterrupt>();
+
+		pendingTime = new long[initialCapacity];
+		pendingId = new long[initialCapacity];
+		pendingSlot = new int[initialCapacity];
+		slotType = new String[initialCapacity];
+		slotHandler = new Runnable[initialCapacity];
+		nextFreeSlot = new int[initialCapacity];
+		linkFreeSlots(0);
+
+		debugging = Lib.test(dbgInt);
 	}
 
 	/**
@@ -119,16 +126,157 @@ public final class Interrupt {
 		return !enabled;
 	}
 
+	/**
+	 * Advance the simulated time as far as possible without any pending
+	 * interrupt becoming due, in whole kernel ticks. When interrupts are next
+	 * enabled, the time advances one more kernel tick and the interrupt is
+	 * delivered, exactly as if the current thread had disabled and enabled
+	 * interrupts repeatedly until then. The idle thread uses this to skip over
+	 * time in which nothing can happen.
+	 * 
+	 * <p>
+	 * Interrupts must be disabled.
+	 */
+	public void fastForward() {
+		Lib.assertTrue(disabled());
+
+		if (numPending == 0)
+			return;
+
+		Stats stats = privilege.stats;
+
+		long delay = pendingTime[0] - stats.totalTicks;
+		if (delay <= Stats.KernelTick)
+			return;
+
+		long skipped = (delay - 1) / Stats.KernelTick * Stats.KernelTick;
+
+		stats.kernelTicks += skipped;
+		stats.totalTicks += skipped;
+
+		if (debugging)
+			System.out.println("== Fast forward to " + stats.totalTicks + " ==");
+	}
+
 	private void schedule(long when, String type, Runnable handler) {
 		Lib.assertTrue(when > 0);
 
 		long time = privilege.stats.totalTicks + when;
-		PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
+		long id = numPendingInterruptsCreated++;
+
+		if (debugging)
+			System.out.println("Scheduling the " + type
+					+ " interrupt handler at time = " + time);
+
+		if (freeSlot == -1)
+			grow();
+
+		int slot = freeSlot;
+		freeSlot = nextFreeSlot[slot];
+		slotType[slot] = type;
+		slotHandler[slot] = handler;
+
+		// sift the new interrupt up from the end of the heap
+		int i = numPending++;
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (!precedes(time, id, parent))
+				break;
+
+			move(parent, i);
+			i = parent;
+		}
+
+		pendingTime[i] = time;
+		pendingId[i] = id;
+		pendingSlot[i] = slot;
+	}
+
+	/**
+	 * Remove the earliest pending interrupt from the heap, and free its
+	 * handler slot.
+	 */
+	private void removeFirst() {
+		int slot = pendingSlot[0];
+		slotType[slot] = null;
+		slotHandler[slot] = null;
+		nextFreeSlot[slot] = freeSlot;
+		freeSlot = slot;
+
+		if (--numPending == 0)
+			return;
+
+		// sift the last interrupt down from the root
+		long time = pendingTime[numPending];
+		long id = pendingId[numPending];
+		int last = pendingSlot[numPending];
+
+		int i = 0;
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= numPending)
+				break;
+
+			if (child + 1 < numPending
+					&& precedes(pendingTime[child + 1], pendingId[child + 1],
+							child))
+				child++;
+
+			if (!precedes(pendingTime[child], pendingId[child], time, id))
+				break;
 
-		Lib.debug(dbgInt, "Scheduling the " + type
-				+ " interrupt handler at time = " + time);
+			move(child, i);
+			i = child;
+		}
+
+		pendingTime[i] = time;
+		pendingId[i] = id;
+		pendingSlot[i] = last;
+	}
 
-		pending.add(toOccur);
+	/**
+	 * Test whether an interrupt at <i>time</i> with sequence number <i>id</i>
+	 * should be delivered before the one at heap position <i>i</i>. Interrupts
+	 * scheduled for the same time are delivered in the order they were
+	 * scheduled.
+	 */
+	private boolean precedes(long time, long id, int i) {
+		return precedes(time, id, pendingTime[i], pendingId[i]);
+	}
+
+	private static boolean precedes(long time1, long id1, long time2, long id2) {
+		return time1 < time2 || (time1 == time2 && id1 < id2);
+	}
+
+	private void move(int from, int to) {
+		pendingTime[to] = pendingTime[from];
+		pendingId[to] = pendingId[from];
+		pendingSlot[to] = pendingSlot[from];
+	}
+
+	/**
+	 * Double the capacity of the heap and the handler slots. Every slot is in
+	 * use whenever this is called, so the new slots become the free list.
+	 */
+	private void grow() {
+		int capacity = pendingTime.length;
+
+		pendingTime = Arrays.copyOf(pendingTime, capacity * 2);
+		pendingId = Arrays.copyOf(pendingId, capacity * 2);
+		pendingSlot = Arrays.copyOf(pendingSlot, capacity * 2);
+		slotType = Arrays.copyOf(slotType, capacity * 2);
+		slotHandler = Arrays.copyOf(slotHandler, capacity * 2);
+		nextFreeSlot = Arrays.copyOf(nextFreeSlot, capacity * 2);
+
+		linkFreeSlots(capacity);
+	}
+
+	private void linkFreeSlots(int first) {
+		for (int slot = first; slot < nextFreeSlot.length - 1; slot++)
+			nextFreeSlot[slot] = slot + 1;
+
+		nextFreeSlot[nextFreeSlot.length - 1] = -1;
+		freeSlot = first;
 	}
 
 	private void tick(boolean inKernelMode) {
@@ -143,7 +291,34 @@ public final class Interrupt {
 			stats.totalTicks += Stats.UserTick;
 		}
 
-		if (Lib.test(dbgInt))
+		if (debugging)
+			System.out.println("== Tick " + stats.totalTicks + " ==");
+
+		enabled = false;
+		checkIfDue();
+		enabled = true;
+	}
+
+	private long userTicksUntilDue() {
+		if (numPending == 0)
+			return Long.MAX_VALUE;
+
+		long delay = pendingTime[0] - privilege.stats.totalTicks;
+
+		// the handler runs after the instruction that reaches its time
+		return Math.max(1, (delay + Stats.UserTick - 1) / Stats.UserTick);
+	}
+
+	private void tickUser(int numInstructions) {
+		Stats stats = privilege.stats;
+
+		Lib.assertTrue(numInstructions > 0
+				&& numInstructions <= userTicksUntilDue());
+
+		stats.userTicks += (long) numInstructions * Stats.UserTick;
+		stats.totalTicks += (long) numInstructions * Stats.UserTick;
+
+		if (debugging)
 			System.out.println("== Tick " + stats.totalTicks + " ==");
 
 		enabled = false;
@@ -156,33 +331,37 @@ public final class Interrupt {
 
 		Lib.assertTrue(disabled());
 
-		if (Lib.test(dbgInt))
+		if (debugging)
 			print();
 
-		if (pending.isEmpty())
+		if (numPending == 0)
 			return;
 
-		if (((PendingInterrupt) pending.first()).time > time)
+		if (pendingTime[0] > time)
 			return;
 
-		Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
+		if (debugging)
+			System.out.println("Invoking interrupt handlers at time = " + time);
 
-		while (!pending.isEmpty()
-				&& ((PendingInterrupt) pending.first()).time <= time) {
-			PendingInterrupt next = (PendingInterrupt) pending.first();
-			pending.remove(next);
+		while (numPending > 0 && pendingTime[0] <= time) {
+			int slot = pendingSlot[0];
+			String type = slotType[slot];
+			Runnable handler = slotHandler[slot];
 
-			Lib.assertTrue(next.time <= time);
+			// free the slot first, since the handler may schedule another
+			removeFirst();
 
 			if (privilege.processor != null)
 				privilege.processor.flushPipe();
 
-			Lib.debug(dbgInt, "  " + next.type);
+			if (debugging)
+				System.out.println("  " + type);
 
-			next.handler.run();
+			handler.run();
 		}
 
-		Lib.debug(dbgInt, "  (end of list)");
+		if (debugging)
+			System.out.println("  (end of list)");
 	}
 
 	private void print() {
@@ -190,55 +369,62 @@ public final class Interrupt {
 				+ ", interrupts " + (enabled ? "on" : "off"));
 		System.out.println("Pending interrupts:");
 
-		for (Iterator i = pending.iterator(); i.hasNext();) {
-			PendingInterrupt toOccur = (PendingInterrupt) i.next();
-			System.out.println("  " + toOccur.type + ", scheduled at "
-					+ toOccur.time);
+		// the heap is only partially ordered, so sort a copy of it
+		int[] order = new int[numPending];
+		for (int i = 0; i < numPending; i++) {
+			int j = i;
+			while (j > 0
+					&& precedes(pendingTime[i], pendingId[i], order[j - 1])) {
+				order[j] = order[j - 1];
+				j--;
+			}
+			order[j] = i;
+		}
+
+		for (int i = 0; i < numPending; i++) {
+			System.out.println("  " + slotType[pendingSlot[order[i]]]
+					+ ", scheduled at " + pendingTime[order[i]]);
 		}
 
 		System.out.println("  (end of list)");
 	}
 
-	private class PendingInterrupt implements Comparable {
-		PendingInterrupt(long time, String type, Runnable handler) {
-			this.time = time;
-			this.type = type;
-			this.handler = handler;
-			this.id = numPendingInterruptsCreated++;
-		}
+	private long numPendingInterruptsCreated = 0;
 
-		public int compareTo(Object o) {
-			PendingInterrupt toOccur = (PendingInterrupt) o;
-
-			// can't return 0 for unequal objects, so check all fields
-			if (time < toOccur.time)
-				return -1;
-			else if (time > toOccur.time)
-				return 1;
-			else if (id < toOccur.id)
-				return -1;
-			else if (id > toOccur.id)
-				return 1;
-			else
-				return 0;
-		}
+	private Privilege privilege;
 
-		long time;
+	private boolean enabled;
 
-		String type;
+	/**
+	 * The pending interrupts, as a binary min-heap ordered by time and then
+	 * by sequence number. Entry <i>i</i> is spread across the three
+	 * <tt>pending</tt> arrays, and <tt>pendingSlot[i]</tt> locates its type
+	 * and handler in the slot arrays.
+	 */
+	private long[] pendingTime, pendingId;
 
-		Runnable handler;
+	private int[] pendingSlot;
 
-		private long id;
-	}
+	private int numPending = 0;
 
-	private long numPendingInterruptsCreated = 0;
+	/** The type and handler of each scheduled interrupt, indexed by slot. */
+	private String[] slotType;
 
-	private Privilege privilege;
+	private Runnable[] slotHandler;
 
-	private boolean enabled;
+	/** The free slots, linked through <tt>nextFreeSlot</tt>. */
+	private int[] nextFreeSlot;
+
+	private int freeSlot;
 
-	private TreeSet<PendingInterrupt> pending;
+	private static final int initialCapacity = 16;
+
+	/**
+	 * <tt>true</tt> if the interrupt debug flag is enabled. The flags cannot
+	 * change once the machine is running, so this is tested once here rather
+	 * than on every tick.
+	 */
+	private boolean debugging;
 
 	private static final char dbgInt = 'i';
 
@@ -250,5 +436,13 @@ public final class Interrupt {
 		public void tick(boolean inKernelMode) {
 			Interrupt.this.tick(inKernelMode);
 		}
+
+		public long userTicksUntilDue() {
+			return Interrupt.this.userTicksUntilDue();
+		}
+
+		public void tickUser(int numInstructions) {
+			Interrupt.this.tickUser(numInstructions);
+		}
 	}
 }
@@ -6,6 +6,7 @@ import nachos.security.*;
 import nachos.ag.*;
 
 import java.io.File;
+import java.util.ArrayList;
 
 /**
  * The master class of the simulated machine. Processes command line arguments,
@@ -97,10 +98,23 @@ public final class Machine {
 	 */
 	public static void halt() {
 		System.out.print("Machine halting!\n\n");
+		for (Runnable handler : haltHandlers)
+			handler.run();
 		stats.print();
 		terminate();
 	}
 
+	/**
+	 * Add a handler for <tt>halt()</tt> to run before printing the statistics,
+	 * so the kernel can print its own. Handlers run in the order they were
+	 * added.
+	 * 
+	 * @param handler the halt handler.
+	 */
+	public static void addHaltHandler(Runnable handler) {
+		haltHandlers.add(handler);
+	}
+
 	/**
 	 * Return an array containing all command line arguments.
 	 * 
@@ -433,6 +447,8 @@ public final class Machine {
 
 	private static Stats stats = new Stats();
 
+	private static ArrayList<Runnable> haltHandlers = new ArrayList<Runnable>();
+
 	private static int numPhysPages = -1;
 
 	private static long randomSeed = 0;
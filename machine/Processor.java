@@ -4,6 +4,10 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -18,6 +22,20 @@ import nachos.security.*;
  * <p>
  * An instance of a <tt>Processor</tt> also includes pages of physical memory
  * accessible to user programs, the size of which is fixed by the constructor.
+ * Memory is normally a byte array on the Java heap; if the
+ * <tt>nachos.conf</tt> key <tt>Processor.memoryBackend</tt> is
+ * <tt>direct</tt>, it is allocated outside the heap instead, as a single
+ * direct buffer. Either way physical addresses are <tt>int</tt>s, so memory
+ * is limited to <tt>Integer.MAX_VALUE / pageSize</tt> pages, just under 2GB;
+ * asking for more fails an assertion at startup rather than wrapping around.
+ * 
+ * <p>
+ * If the <tt>nachos.conf</tt> key <tt>Processor.blockMode</tt> is
+ * <tt>true</tt>, the processor executes predecoded basic blocks, advancing
+ * the simulated time once per block instead of once per instruction. This is
+ * much faster, and interrupts are still delivered after exactly the same
+ * instruction. The mode is disabled when processor or interrupt debugging is
+ * enabled.
  */
 public final class Processor {
 	/**
@@ -43,7 +61,38 @@ public final class Processor {
 		for (int i = 0; i < numUserRegisters; i++)
 			registers[i] = 0;
 
-		mainMemory = new byte[pageSize * numPhysPages];
+		// physical addresses are ints, so memory is limited to 2GB
+		Lib.assertTrue(numPhysPages > 0
+				&& numPhysPages <= Integer.MAX_VALUE / pageSize,
+				"physical memory must be between 1 and "
+						+ Integer.MAX_VALUE / pageSize + " pages");
+
+		String memoryBackend = Config.getString("Processor.memoryBackend",
+				"heap");
+
+		if (memoryBackend.equals("heap")) {
+			mainMemory = new byte[pageSize * numPhysPages];
+			memoryView = ByteBuffer.wrap(mainMemory);
+		}
+		else if (memoryBackend.equals("direct")) {
+			mainMemory = null;
+			memoryView = ByteBuffer.allocateDirect(pageSize * numPhysPages);
+		}
+		else {
+			Lib.assertNotReached("unknown Processor.memoryBackend: "
+					+ memoryBackend);
+		}
+
+		memoryView.order(ByteOrder.LITTLE_ENDIAN);
+
+		decodedPages = new DecodedPage[numPhysPages];
+
+		// interrupt debugging prints every tick, so it needs the slow loop too
+		debugging = Lib.test(dbgProcessor) || Lib.test(dbgDisassemble)
+				|| Lib.test(dbgFullDisassemble) || Lib.test(dbgInterrupt);
+
+		blockMode = Config.getBoolean("Processor.blockMode", false)
+				&& !debugging;
 
 		if (usingTLB) {
 			translations = new TranslationEntry[tlbSize];
@@ -91,16 +140,86 @@ public final class Processor {
 
 		Instruction inst = new Instruction();
 
-		while (true) {
-			try {
-				inst.run();
-			}
-			catch (MipsException e) {
-				e.handle();
+		// the loop is chosen once, so the fast loops never test debug flags
+		if (blockMode) {
+			while (true)
+				runBlock(inst);
+		}
+		else if (!debugging) {
+			while (true)
+				runBatch(inst);
+		}
+		else {
+			while (true) {
+				try {
+					inst.run();
+				}
+				catch (MipsException e) {
+					e.handle();
+				}
+
+				privilege.interrupt.tick(false);
 			}
+		}
+	}
+
+	/**
+	 * Execute instructions until the next pending interrupt is due, or until
+	 * an instruction raises an exception. The simulated time is advanced once
+	 * for all of them, so interrupts are still delivered after exactly the
+	 * same instruction as they would be if time advanced after each one.
+	 * 
+	 * @param inst the instruction state to execute with.
+	 */
+	private void runBatch(Instruction inst) {
+		int budget = (int) Math.min(privilege.interrupt.userTicksUntilDue(),
+				Integer.MAX_VALUE);
+
+		try {
+			inst.runBatch(budget);
+		}
+		catch (MipsException e) {
+			// charge for the instructions that completed before the exception
+			if (inst.completed > 0)
+				privilege.interrupt.tickUser(inst.completed);
+
+			e.handle();
 
 			privilege.interrupt.tick(false);
+			return;
 		}
+
+		privilege.interrupt.tickUser(inst.completed);
+	}
+
+	/**
+	 * Execute the basic block at the current PC, stopping early if the next
+	 * pending interrupt becomes due. The simulated time is advanced once for
+	 * the whole block, so interrupts are still delivered after exactly the
+	 * same instruction as they would be when running one instruction at a
+	 * time.
+	 * 
+	 * @param inst the instruction state to execute the block with.
+	 */
+	private void runBlock(Instruction inst) {
+		int budget = (int) Math.min(privilege.interrupt.userTicksUntilDue(),
+				pageSize / 4);
+
+		try {
+			inst.runBlock(budget);
+		}
+		catch (MipsException e) {
+			// charge for the instructions that completed before the exception
+			if (inst.completed > 0)
+				privilege.interrupt.tickUser(inst.completed);
+
+			e.handle();
+
+			privilege.interrupt.tick(false);
+			return;
+		}
+
+		privilege.interrupt.tickUser(inst.completed);
 	}
 
 	/**
@@ -173,6 +292,8 @@ public final class Processor {
 		Lib.assertTrue(!usingTLB);
 
 		this.translations = pageTable;
+
+		flushTranslationCache();
 	}
 
 	/**
@@ -214,6 +335,8 @@ public final class Processor {
 		Lib.assertTrue(number >= 0 && number < tlbSize);
 
 		translations[number] = new TranslationEntry(entry);
+
+		flushTranslationCache();
 	}
 
 	/**
@@ -230,12 +353,141 @@ public final class Processor {
 	 * Return a reference to the physical memory array. The size of this array
 	 * is <tt>pageSize * getNumPhysPages()</tt>.
 	 * 
+	 * <p>
+	 * There is no such array if <tt>Processor.memoryBackend</tt> is
+	 * <tt>direct</tt>, so code that must work with either backend should use
+	 * <tt>readPhysMemory()</tt> and <tt>writePhysMemory()</tt> instead.
+	 * 
 	 * @return the main memory array.
 	 */
 	public byte[] getMemory() {
+		Lib.assertTrue(mainMemory != null,
+				"no memory array with the direct memory backend");
+
 		return mainMemory;
 	}
 
+	/**
+	 * Copy bytes out of physical memory.
+	 * 
+	 * @param paddr the first physical address to read.
+	 * @param data the array where the data will be stored.
+	 * @param offset the first byte to write in the array.
+	 * @param length the number of bytes to copy.
+	 */
+	public void readPhysMemory(int paddr, byte[] data, int offset, int length) {
+		Lib.assertTrue(paddr >= 0 && length >= 0
+				&& length <= memoryView.capacity() - paddr);
+
+		if (mainMemory != null) {
+			System.arraycopy(mainMemory, paddr, data, offset, length);
+		}
+		else {
+			ByteBuffer buffer = memoryView.duplicate();
+			buffer.position(paddr);
+			buffer.get(data, offset, length);
+		}
+	}
+
+	/**
+	 * Copy bytes into physical memory, discarding any instructions the
+	 * processor decoded from the words that were overwritten.
+	 * 
+	 * @param paddr the first physical address to write.
+	 * @param data the array containing the data to copy.
+	 * @param offset the first byte to copy from the array.
+	 * @param length the number of bytes to copy.
+	 */
+	public void writePhysMemory(int paddr, byte[] data, int offset, int length) {
+		Lib.assertTrue(paddr >= 0 && length >= 0
+				&& length <= memoryView.capacity() - paddr);
+
+		if (mainMemory != null) {
+			System.arraycopy(data, offset, mainMemory, paddr, length);
+		}
+		else {
+			ByteBuffer buffer = memoryView.duplicate();
+			buffer.position(paddr);
+			buffer.put(data, offset, length);
+		}
+
+		if (length > 0) {
+			for (int ppn = paddr / pageSize; ppn <= (paddr + length - 1)
+					/ pageSize; ppn++)
+				decodedPages[ppn] = null;
+		}
+	}
+
+	/**
+	 * Discard any predecoded instructions cached for the specified physical
+	 * page. The processor caches decoded instructions by physical address, so
+	 * anything that modifies main memory through <tt>getMemory()</tt> (rather
+	 * than through user-mode stores) must call this method for every page it
+	 * modifies, or the processor may continue to execute the old contents.
+	 * 
+	 * @param ppn the physical page that was modified.
+	 */
+	public void invalidatePage(int ppn) {
+		Lib.assertTrue(ppn >= 0 && ppn < numPhysPages);
+
+		decodedPages[ppn] = null;
+	}
+
+	/**
+	 * Read a little-endian word from physical memory. This reads the whole
+	 * word at once, rather than assembling it a byte at a time like
+	 * <tt>Lib.bytesToInt()</tt>.
+	 * 
+	 * @param paddr the physical address to read. Must be a multiple of 4.
+	 * @return the word at <i>paddr</i>.
+	 */
+	public int readPhysInt(int paddr) {
+		Lib.assertTrue((paddr & 3) == 0);
+
+		return memoryView.getInt(paddr);
+	}
+
+	/**
+	 * Read a little-endian halfword from physical memory.
+	 * 
+	 * @param paddr the physical address to read. Must be a multiple of 2.
+	 * @return the halfword at <i>paddr</i>.
+	 */
+	public short readPhysShort(int paddr) {
+		Lib.assertTrue((paddr & 1) == 0);
+
+		return memoryView.getShort(paddr);
+	}
+
+	/**
+	 * Write a little-endian word to physical memory. Unlike a write through
+	 * <tt>getMemory()</tt>, this also discards any instruction the processor
+	 * decoded from that word.
+	 * 
+	 * @param paddr the physical address to write. Must be a multiple of 4.
+	 * @param value the word to store.
+	 */
+	public void writePhysInt(int paddr, int value) {
+		Lib.assertTrue((paddr & 3) == 0);
+
+		memoryView.putInt(paddr, value);
+		invalidateWord(paddr);
+	}
+
+	/**
+	 * Write a little-endian halfword to physical memory, discarding any
+	 * instruction the processor decoded from the enclosing word.
+	 * 
+	 * @param paddr the physical address to write. Must be a multiple of 2.
+	 * @param value the halfword to store.
+	 */
+	public void writePhysShort(int paddr, short value) {
+		Lib.assertTrue((paddr & 1) == 0);
+
+		memoryView.putShort(paddr, value);
+		invalidateWord(paddr);
+	}
+
 	/**
 	 * Concatenate a page number and an offset into an address.
 	 * 
@@ -276,20 +528,39 @@ public final class Processor {
 		delayedLoad(0, 0, 0);
 	}
 
+	/**
+	 * Forget the most recent translation of each access type. Called whenever
+	 * the translation state might have changed: when the page table or a TLB
+	 * entry is replaced, and whenever the kernel runs (which is the only time
+	 * it can modify the page table entries it owns).
+	 */
+	private void flushTranslationCache() {
+		for (int i = 0; i < cachedVPN.length; i++)
+			cachedVPN[i] = -1;
+	}
+
 	/**
 	 * Translate a virtual address into a physical address, using either a page
 	 * table or a TLB. Check for alignment, make sure the virtual page is valid,
 	 * make sure a read-only page is not being written, make sure the resulting
 	 * physical page is valid, and then return the resulting physical address.
 	 * 
+	 * <p>
+	 * The last successful translation of each access type is cached, so that
+	 * consecutive accesses to the same page (such as sequential instruction
+	 * fetches) only need to check alignment.
+	 * 
 	 * @param vaddr the virtual address to translate.
 	 * @param size the size of the memory reference (must be 1, 2, or 4).
-	 * @param writing <tt>true</tt> if the memory reference is a write.
+	 * @param access the type of the memory reference (<tt>accessFetch</tt>,
+	 * <tt>accessRead</tt>, or <tt>accessWrite</tt>).
 	 * @return the physical address.
 	 * @exception MipsException if a translation error occurred.
 	 */
-	private int translate(int vaddr, int size, boolean writing)
+	private int translate(int vaddr, int size, int access)
 			throws MipsException {
+		boolean writing = (access == accessWrite);
+
 		if (Lib.test(dbgProcessor))
 			System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
 					+ (writing ? ", write" : ", read..."));
@@ -297,13 +568,26 @@ public final class Processor {
 		// check alignment
 		if ((vaddr & (size - 1)) != 0) {
 			Lib.debug(dbgProcessor, "\t\talignment error");
-			throw new MipsException(exceptionAddressError, vaddr);
+			throw raise(exceptionAddressError, vaddr);
 		}
 
 		// calculate virtual page number and offset from the virtual address
 		int vpn = pageFromAddress(vaddr);
 		int offset = offsetFromAddress(vaddr);
 
+		// the used and dirty bits were already set when the entry was cached
+		if (cachedVPN[access] == vpn) {
+			privilege.stats.numTranslationHits++;
+
+			int paddr = cachedPageAddress[access] + offset;
+
+			if (Lib.test(dbgProcessor))
+				System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));
+			return paddr;
+		}
+
+		privilege.stats.numTranslationMisses++;
+
 		TranslationEntry entry = null;
 
 		// if not using a TLB, then the vpn is an index into the table
@@ -312,7 +596,7 @@ public final class Processor {
 					|| translations[vpn] == null || !translations[vpn].valid) {
 				privilege.stats.numPageFaults++;
 				Lib.debug(dbgProcessor, "\t\tpage fault");
-				throw new MipsException(exceptionPageFault, vaddr);
+				throw raise(exceptionPageFault, vaddr);
 			}
 
 			entry = translations[vpn];
@@ -328,21 +612,21 @@ public final class Processor {
 			if (entry == null) {
 				privilege.stats.numTLBMisses++;
 				Lib.debug(dbgProcessor, "\t\tTLB miss");
-				throw new MipsException(exceptionTLBMiss, vaddr);
+				throw raise(exceptionTLBMiss, vaddr);
 			}
 		}
 
 		// check if trying to write a read-only page
 		if (entry.readOnly && writing) {
 			Lib.debug(dbgProcessor, "\t\tread-only exception");
-			throw new MipsException(exceptionReadOnly, vaddr);
+			throw raise(exceptionReadOnly, vaddr);
 		}
 
 		// check if physical page number is out of range
 		int ppn = entry.ppn;
 		if (ppn < 0 || ppn >= numPhysPages) {
 			Lib.debug(dbgProcessor, "\t\tbad ppn");
-			throw new MipsException(exceptionBusError, vaddr);
+			throw raise(exceptionBusError, vaddr);
 		}
 
 		// set used and dirty bits as appropriate
@@ -352,11 +636,37 @@ public final class Processor {
 
 		int paddr = (ppn * pageSize) + offset;
 
+		cachedVPN[access] = vpn;
+		cachedPageAddress[access] = ppn * pageSize;
+
 		if (Lib.test(dbgProcessor))
 			System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));
 		return paddr;
 	}
 
+	/**
+	 * Translate a virtual address without producing any debugging output. An
+	 * aligned access to the page of the last translation of the same type is
+	 * handled here; anything else is passed on to <tt>translate()</tt>.
+	 * 
+	 * @param vaddr the virtual address to translate.
+	 * @param size the size of the memory reference (must be 1, 2, or 4).
+	 * @param access the type of the memory reference.
+	 * @return the physical address.
+	 * @exception MipsException if a translation error occurred.
+	 */
+	private int fastTranslate(int vaddr, int size, int access)
+			throws MipsException {
+		if ((vaddr & (size - 1)) == 0
+				&& cachedVPN[access] == pageFromAddress(vaddr)) {
+			privilege.stats.numTranslationHits++;
+
+			return cachedPageAddress[access] + offsetFromAddress(vaddr);
+		}
+
+		return translate(vaddr, size, access);
+	}
+
 	/**
 	 * Read </i>size</i> (1, 2, or 4) bytes of virtual memory at <i>vaddr</i>,
 	 * and return the result.
@@ -367,14 +677,16 @@ public final class Processor {
 	 * @exception MipsException if a translation error occurred.
 	 */
 	private int readMem(int vaddr, int size) throws MipsException {
+		Lib.assertTrue(size == 1 || size == 2 || size == 4);
+
+		if (!debugging)
+			return loadPhys(fastTranslate(vaddr, size, accessRead), size);
+
 		if (Lib.test(dbgProcessor))
 			System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
 					+ ", size=" + size);
 
-		Lib.assertTrue(size == 1 || size == 2 || size == 4);
-
-		int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
-				size);
+		int value = loadPhys(translate(vaddr, size, accessRead), size);
 
 		if (Lib.test(dbgProcessor))
 			System.out.println("\t\tvalue read=0x"
@@ -393,14 +705,86 @@ public final class Processor {
 	 * @exception MipsException if a translation error occurred.
 	 */
 	private void writeMem(int vaddr, int size, int value) throws MipsException {
-		if (Lib.test(dbgProcessor))
-			System.out.println("\twriteMem vaddr=0x" + Lib.toHexString(vaddr)
-					+ ", size=" + size + ", value=0x"
-					+ Lib.toHexString(value, size * 2));
-
 		Lib.assertTrue(size == 1 || size == 2 || size == 4);
 
-		Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size, value);
+		int paddr;
+
+		if (!debugging) {
+			paddr = fastTranslate(vaddr, size, accessWrite);
+		}
+		else {
+			if (Lib.test(dbgProcessor))
+				System.out.println("\twriteMem vaddr=0x"
+						+ Lib.toHexString(vaddr) + ", size=" + size
+						+ ", value=0x" + Lib.toHexString(value, size * 2));
+
+			paddr = translate(vaddr, size, accessWrite);
+		}
+
+		storePhys(paddr, size, value);
+
+		// the store is aligned, so it can only modify a single cached word
+		invalidateWord(paddr);
+	}
+
+	/**
+	 * Discard the predecoded instruction, if any, for the word holding
+	 * <i>paddr</i>.
+	 */
+	private void invalidateWord(int paddr) {
+		DecodedPage page = decodedPages[paddr / pageSize];
+		if (page != null)
+			page.info[(paddr % pageSize) >> 2] = -1;
+	}
+
+	/**
+	 * Return the predecoded instructions of the physical page holding
+	 * <i>paddr</i>, allocating them the first time an instruction is fetched
+	 * from the page.
+	 */
+	private DecodedPage decodedPage(int paddr) {
+		int ppn = paddr / pageSize;
+
+		DecodedPage page = decodedPages[ppn];
+		if (page == null) {
+			page = new DecodedPage(ppn * pageSize, blockMode);
+			decodedPages[ppn] = page;
+		}
+
+		return page;
+	}
+
+	/**
+	 * Read an aligned, sign-extended value of <i>size</i> (1, 2, or 4) bytes
+	 * from physical memory.
+	 */
+	private int loadPhys(int paddr, int size) {
+		switch (size) {
+		case 1:
+			return memoryView.get(paddr);
+		case 2:
+			return memoryView.getShort(paddr);
+		default:
+			return memoryView.getInt(paddr);
+		}
+	}
+
+	/**
+	 * Write the low <i>size</i> (1, 2, or 4) bytes of <i>value</i> to an
+	 * aligned physical address.
+	 */
+	private void storePhys(int paddr, int size, int value) {
+		switch (size) {
+		case 1:
+			memoryView.put(paddr, (byte) value);
+			break;
+		case 2:
+			memoryView.putShort(paddr, (short) value);
+			break;
+		default:
+			memoryView.putInt(paddr, value);
+			break;
+		}
 	}
 
 	/**
@@ -556,6 +940,21 @@ public final class Processor {
 	 */
 	private TranslationEntry[] translations;
 
+	/** Memory access types, used to index the translation cache. */
+	private static final int accessFetch = 0, accessRead = 1, accessWrite = 2;
+
+	/**
+	 * The virtual page of the last translation of each access type, or -1 if
+	 * there is none.
+	 */
+	private int[] cachedVPN = { -1, -1, -1 };
+
+	/**
+	 * The physical address of the start of the page of the last translation
+	 * of each access type.
+	 */
+	private int[] cachedPageAddress = new int[3];
+
 	/** Size of a page, in bytes. */
 	public static final int pageSize = 0x400;
 
@@ -565,36 +964,104 @@ public final class Processor {
 	/** Number of physical pages in memory. */
 	private int numPhysPages;
 
-	/** Main memory for user programs. */
+	/**
+	 * Main memory for user programs, or <tt>null</tt> if it is allocated
+	 * outside the Java heap.
+	 */
 	private byte[] mainMemory;
 
+	/**
+	 * A little-endian view of main memory, through which the processor makes
+	 * all of its own accesses. It wraps <tt>mainMemory</tt>, or is a direct
+	 * buffer if <tt>Processor.memoryBackend</tt> is <tt>direct</tt>.
+	 */
+	private ByteBuffer memoryView;
+
+	/**
+	 * The predecoded instruction cache, indexed by physical page number.
+	 * Only pages that instructions have been fetched from have an entry, so
+	 * data pages cost nothing; an entry is dropped whenever its page is
+	 * rewritten as a whole.
+	 */
+	private DecodedPage[] decodedPages;
+
+	/**
+	 * <tt>true</tt> if any processor or interrupt debug flag is enabled. The flags cannot
+	 * change once the machine is running, so <tt>run()</tt> uses this to
+	 * choose between the instrumented loop and one that never tests them.
+	 */
+	private boolean debugging;
+
+	/**
+	 * <tt>true</tt> if the processor executes whole basic blocks between
+	 * interrupt checks, rather than a single instruction at a time.
+	 */
+	private boolean blockMode;
+
 	/** The kernel exception handler, called on every user exception. */
 	private Runnable exceptionHandler = null;
 
+	/** The exception object thrown for every processor exception. */
+	private final MipsException mipsException = new MipsException();
+
 	private static final char dbgProcessor = 'p';
 
 	private static final char dbgDisassemble = 'm';
 
 	private static final char dbgFullDisassemble = 'M';
 
+	private static final char dbgInterrupt = 'i';
+
 	private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 		public void flushPipe() {
 			finishLoad();
+			flushTranslationCache();
 		}
 	}
 
-	private class MipsException extends Exception {
-		public MipsException(int cause) {
-			Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
+	/**
+	 * Prepare the processor's exception object to signal the specified
+	 * exception.
+	 * 
+	 * @param cause the cause of the exception.
+	 * @return the exception to throw.
+	 */
+	private MipsException raise(int cause) {
+		Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
 
-			this.cause = cause;
-		}
+		mipsException.cause = cause;
+		mipsException.hasBadVAddr = false;
+
+		return mipsException;
+	}
+
+	/**
+	 * Prepare the processor's exception object to signal the specified
+	 * exception, caused by an access to the specified virtual address.
+	 * 
+	 * @param cause the cause of the exception.
+	 * @param badVAddr the virtual address that caused the exception.
+	 * @return the exception to throw.
+	 */
+	private MipsException raise(int cause, int badVAddr) {
+		raise(cause);
 
-		public MipsException(int cause, int badVAddr) {
-			this(cause);
+		mipsException.hasBadVAddr = true;
+		mipsException.badVAddr = badVAddr;
+
+		return mipsException;
+	}
 
-			hasBadVAddr = true;
-			this.badVAddr = badVAddr;
+	/**
+	 * Signals a processor exception. Page faults and TLB misses can occur on
+	 * almost every instruction under demand paging, so a single instance is
+	 * reused for every exception and it never captures a stack trace. The
+	 * instance is free to be reused as soon as <tt>handle()</tt> has copied
+	 * its state into the processor registers.
+	 */
+	private class MipsException extends Exception {
+		public Throwable fillInStackTrace() {
+			return this;
 		}
 
 		public void handle() {
@@ -607,6 +1074,7 @@ public final class Processor {
 				System.out.println("exception: " + exceptionNames[cause]);
 
 			finishLoad();
+			flushTranslationCache();
 
 			Lib.assertTrue(exceptionHandler != null);
 
@@ -622,15 +1090,163 @@ public final class Processor {
 		private int cause, badVAddr;
 	}
 
+	/**
+	 * The predecoded instructions of one physical page, indexed by word within
+	 * the page. An entry is valid if its <tt>info</tt> index into
+	 * <tt>Mips.table</tt> is non-negative.
+	 */
+	private static class DecodedPage {
+		DecodedPage(int paddr, boolean blockMode) {
+			this.paddr = paddr;
+
+			Arrays.fill(info, (short) -1);
+
+			if (blockMode)
+				blockLength = new short[pageSize / 4];
+		}
+
+		/** The physical address of the page. */
+		final int paddr;
+
+		final short[] info = new short[pageSize / 4];
+
+		/** The raw instruction word of each predecoded instruction. */
+		final int[] word = new int[pageSize / 4];
+
+		/** The immediate field of each predecoded instruction, extended. */
+		final int[] imm = new int[pageSize / 4];
+
+		/** The register and shift fields of each predecoded instruction. */
+		final byte[] rs = new byte[pageSize / 4], rt = new byte[pageSize / 4],
+				rd = new byte[pageSize / 4], sh = new byte[pageSize / 4];
+
+		/** The destination register of each predecoded instruction, or -1. */
+		final byte[] dst = new byte[pageSize / 4];
+
+		/**
+		 * The number of instructions in the basic block starting at each word,
+		 * or 0 if no block has been discovered there yet. Only allocated if
+		 * the processor runs in block mode.
+		 */
+		short[] blockLength = null;
+	}
+
 	private class Instruction {
 		public void run() throws MipsException {
 			// hopefully this looks familiar to 152 students?
 			fetch();
 			decode();
+			if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
+				print();
+			execute();
+			writeBack();
+			printResult();
+		}
+
+		/**
+		 * Execute a single instruction, like <tt>run()</tt>, but without
+		 * testing any debug flags. Only used when processor debugging is
+		 * disabled.
+		 */
+		public void runFast() throws MipsException {
+			fastFetch();
+			decode();
 			execute();
 			writeBack();
 		}
 
+		/**
+		 * Execute <i>budget</i> instructions with <tt>runFast()</tt>, stopping
+		 * early on an exception. The number of instructions that completed is
+		 * left in <tt>completed</tt>.
+		 * 
+		 * @param budget the number of instructions to execute.
+		 */
+		public void runBatch(int budget) throws MipsException {
+			completed = 0;
+
+			do {
+				runFast();
+			} while (++completed < budget);
+		}
+
+		/**
+		 * Execute up to <i>budget</i> instructions of the basic block starting
+		 * at the current PC. Stops after the delay slot of a branch, when
+		 * control leaves the block, or on an exception. The number of
+		 * instructions that completed is left in <tt>completed</tt>.
+		 * 
+		 * @param budget the maximum number of instructions to execute.
+		 */
+		public void runBlock(int budget) throws MipsException {
+			completed = 0;
+
+			fastFetch();
+
+			int vaddr = registers[regPC];
+			int length = page.blockLength[index];
+			if (length == 0)
+				length = discoverBlock();
+			if (length > budget)
+				length = budget;
+
+			while (true) {
+				decode();
+				execute();
+				writeBack();
+
+				if (++completed == length)
+					return;
+
+				// stop if we branched away or a store modified the block
+				vaddr += 4;
+				index++;
+				if (registers[regPC] != vaddr || page.info[index] < 0)
+					return;
+
+				value = page.word[index];
+			}
+		}
+
+		/**
+		 * Predecode the basic block starting at the current physical word, and
+		 * record its length. A block ends after the delay slot of a branch or
+		 * jump, after an instruction that always raises an exception, or at
+		 * the end of the physical page.
+		 * 
+		 * @return the number of instructions in the block.
+		 */
+		private int discoverBlock() {
+			int start = index;
+			int end = pageSize / 4;
+			int length = 0;
+
+			for (index = start; index < end; index++) {
+				if (page.info[index] < 0)
+					predecode(memoryView.getInt(page.paddr + index * 4));
+
+				length++;
+
+				Mips info = Mips.table[page.info[index]];
+
+				if (Lib.test(Mips.BRANCH, info.flags)) {
+					if (index + 1 < end)
+						length++;
+					break;
+				}
+
+				if (info.operation == Mips.SYSCALL
+						|| info.operation == Mips.UNIMPL
+						|| info.operation == Mips.INVALID)
+					break;
+			}
+
+			index = start;
+			page.blockLength[start] = (short) length;
+
+			return length;
+		}
+
 		private boolean test(int flag) {
 			return Lib.test(flag, flags);
 		}
@@ -641,63 +1257,109 @@ public final class Processor {
 				System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 						+ "\t");
 
-			value = readMem(registers[regPC], 4);
+			if (Lib.test(dbgProcessor))
+				System.out.println("\treadMem vaddr=0x"
+						+ Lib.toHexString(registers[regPC]) + ", size=4");
+
+			int paddr = translate(registers[regPC], 4, accessFetch);
+
+			page = decodedPage(paddr);
+			index = (paddr % pageSize) >> 2;
+			if (page.info[index] < 0)
+				predecode(memoryView.getInt(paddr));
+
+			value = page.word[index];
+
+			if (Lib.test(dbgProcessor))
+				System.out.println("\t\tvalue read=0x"
+						+ Lib.toHexString(value, 8));
 		}
 
-		private void decode() {
-			op = Lib.extract(value, 26, 6);
-			rs = Lib.extract(value, 21, 5);
-			rt = Lib.extract(value, 16, 5);
-			rd = Lib.extract(value, 11, 5);
-			sh = Lib.extract(value, 6, 5);
-			func = Lib.extract(value, 0, 6);
-			target = Lib.extract(value, 0, 26);
-			imm = Lib.extend(value, 0, 16);
-
-			Mips info;
+		private void fastFetch() throws MipsException {
+			int paddr = fastTranslate(registers[regPC], 4, accessFetch);
+
+			page = decodedPage(paddr);
+			index = (paddr % pageSize) >> 2;
+			if (page.info[index] < 0)
+				predecode(memoryView.getInt(paddr));
+
+			value = page.word[index];
+		}
+
+		/**
+		 * Decode the fields of <i>word</i> that do not depend on the register
+		 * contents, and store them in the instruction cache entry for the
+		 * current physical word.
+		 */
+		private void predecode(int word) {
+			int op = Lib.extract(word, 26, 6);
+			int rt = Lib.extract(word, 16, 5);
+			int func = Lib.extract(word, 0, 6);
+			int imm = Lib.extend(word, 0, 16);
+
+			int info;
 			switch (op) {
 			case 0:
-				info = Mips.specialtable[func];
+				info = Mips.specialBase + func;
 				break;
 			case 1:
-				info = Mips.regimmtable[rt];
+				info = Mips.regimmBase + rt;
 				break;
 			default:
-				info = Mips.optable[op];
+				info = op;
 				break;
 			}
 
+			Mips mips = Mips.table[info];
+
+			int dstReg;
+			if (Lib.test(Mips.DSTRA, mips.flags))
+				dstReg = regRA;
+			else if (mips.format == Mips.IFMT)
+				dstReg = rt;
+			else if (mips.format == Mips.RFMT)
+				dstReg = Lib.extract(word, 11, 5);
+			else
+				dstReg = -1;
+
+			if (Lib.test(Mips.UNSIGNED, mips.flags))
+				imm &= 0xFFFF;
+
+			page.word[index] = word;
+			page.imm[index] = imm;
+			page.rs[index] = (byte) Lib.extract(word, 21, 5);
+			page.rt[index] = (byte) rt;
+			page.rd[index] = (byte) Lib.extract(word, 11, 5);
+			page.sh[index] = (byte) Lib.extract(word, 6, 5);
+			page.dst[index] = (byte) dstReg;
+			page.info[index] = (short) info;
+		}
+
+		private void decode() {
+			op = value >>> 26;
+			rs = page.rs[index];
+			rt = page.rt[index];
+			rd = page.rd[index];
+			sh = page.sh[index];
+			func = value & 0x3F;
+			target = value & 0x3FFFFFF;
+			imm = page.imm[index];
+			dstReg = page.dst[index];
+
+			Mips info = Mips.table[page.info[index]];
+
 			operation = info.operation;
 			name = info.name;
 			format = info.format;
 			flags = info.flags;
+			size = info.size;
 
 			mask = 0xFFFFFFFF;
 			branch = true;
 
-			// get memory access size
-			if (test(Mips.SIZEB))
-				size = 1;
-			else if (test(Mips.SIZEH))
-				size = 2;
-			else if (test(Mips.SIZEW))
-				size = 4;
-			else
-				size = 0;
-
 			// get nextPC
 			nextPC = registers[regNextPC] + 4;
 
-			// get dstReg
-			if (test(Mips.DSTRA))
-				dstReg = regRA;
-			else if (format == Mips.IFMT)
-				dstReg = rt;
-			else if (format == Mips.RFMT)
-				dstReg = rd;
-			else
-				dstReg = -1;
-
 			// get jtarget
 			if (format == Mips.RFMT)
 				jtarget = registers[rs];
@@ -708,11 +1370,6 @@ public final class Processor {
 			else
 				jtarget = -1;
 
-			// get imm
-			if (test(Mips.UNSIGNED)) {
-				imm &= 0xFFFF;
-			}
-
 			// get addr
 			addr = registers[rs] + imm;
 
@@ -732,9 +1389,6 @@ public final class Processor {
 				src1 &= 0xFFFFFFFFL;
 				src2 &= 0xFFFFFFFFL;
 			}
-
-			if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
-				print();
 		}
 
 		private void print() {
@@ -884,7 +1538,7 @@ public final class Processor {
 						throw new ArithmeticException();
 				}
 				catch (ArithmeticException e) {
-					throw new MipsException(exceptionOverflow);
+					throw raise(exceptionOverflow);
 				}
 				break;
 
@@ -954,7 +1608,7 @@ public final class Processor {
 				break;
 
 			case Mips.SYSCALL:
-				throw new MipsException(exceptionSyscall);
+				throw raise(exceptionSyscall);
 
 			case Mips.LOAD:
 				value = readMem(addr, size);
@@ -1025,7 +1679,7 @@ public final class Processor {
 				System.err.println("Warning: encountered unimplemented inst");
 
 			case Mips.INVALID:
-				throw new MipsException(exceptionIllegalInstruction);
+				throw raise(exceptionIllegalInstruction);
 
 			default:
 				Lib.assertNotReached();
@@ -1035,7 +1689,7 @@ public final class Processor {
 		private void writeBack() throws MipsException {
 			// if instruction is signed, but carry bit !+ sign bit, throw
 			if (test(Mips.OVERFLOW) && Lib.test(dst, 31) != Lib.test(dst, 32))
-				throw new MipsException(exceptionOverflow);
+				throw raise(exceptionOverflow);
 
 			if (test(Mips.DELAYEDLOAD))
 				delayedLoad(dstReg, (int) dst, mask);
@@ -1048,6 +1702,14 @@ public final class Processor {
 			if (test(Mips.DST) && dstReg != 0)
 				registers[dstReg] = (int) dst;
 
+			if (test(Mips.BRANCH) && branch) {
+				nextPC = jtarget;
+			}
+
+			advancePC(nextPC);
+		}
+
+		private void printResult() {
 			if ((test(Mips.DST) || test(Mips.DELAYEDLOAD)) && dstReg != 0) {
 				if (Lib.test(dbgFullDisassemble)) {
 					System.out.print("#0x" + Lib.toHexString((int) dst));
@@ -1056,19 +1718,16 @@ public final class Processor {
 				}
 			}
 
-			if (test(Mips.BRANCH) && branch) {
-				nextPC = jtarget;
-			}
-
-			advancePC(nextPC);
-
 			if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor))
 					|| Lib.test(dbgFullDisassemble))
 				System.out.print("\n");
 		}
 
+		// the predecoded page of the current instruction, and its word there
+		DecodedPage page;
+
 		// state used to execute a single instruction
-		int value, op, rs, rt, rd, sh, func, target, imm;
+		int index, value, op, rs, rt, rd, sh, func, target, imm;
 
 		int operation, format, flags;
 
@@ -1083,6 +1742,9 @@ public final class Processor {
 		int mask;
 
 		boolean branch;
+
+		// instructions completed by the last call to runBatch() or runBlock()
+		int completed;
 	}
 
 	private static class Mips {
@@ -1098,6 +1760,14 @@ public final class Processor {
 			this(operation, name);
 			this.format = format;
 			this.flags = flags;
+
+			// get memory access size
+			if (Lib.test(SIZEB, flags))
+				size = 1;
+			else if (Lib.test(SIZEH, flags))
+				size = 2;
+			else if (Lib.test(SIZEW, flags))
+				size = 4;
 		}
 
 		int operation = INVALID;
@@ -1108,6 +1778,8 @@ public final class Processor {
 
 		int flags;
 
+		int size = 0;
+
 		// operation types
 		static final int INVALID = 0, UNIMPL = 1, ADD = 2, SUB = 3, MULT = 4,
 				DIV = 5, SLL = 6, SRA = 7, SRL = 8, SLT = 9, AND = 10, OR = 11,
@@ -1229,5 +1901,23 @@ public final class Processor {
 				new Mips(), new Mips(), new Mips(), new Mips(), new Mips(),
 				new Mips(), new Mips(), new Mips(), new Mips(), new Mips(),
 				new Mips(), new Mips() };
+
+		/** Offsets of the special and reg-imm tables within <tt>table</tt>. */
+		static final int specialBase = optable.length,
+				regimmBase = specialBase + specialtable.length;
+
+		/**
+		 * The opcode, special, and reg-imm tables concatenated, so that a
+		 * decoded instruction can be identified by a single index.
+		 */
+		static final Mips[] table = new Mips[regimmBase + regimmtable.length];
+
+		static {
+			System.arraycopy(optable, 0, table, 0, optable.length);
+			System.arraycopy(specialtable, 0, table, specialBase,
+					specialtable.length);
+			System.arraycopy(regimmtable, 0, table, regimmBase,
+					regimmtable.length);
+		}
 	}
 }
@@ -26,6 +26,10 @@ public final class Stats {
 				+ ", writes " + numConsoleWrites);
 		System.out.println("Paging: page faults " + numPageFaults
 				+ ", TLB misses " + numTLBMisses);
+		System.out.println("Translation cache: hits " + numTranslationHits
+				+ ", misses " + numTranslationMisses);
+		System.out.println("Thread pool: hits " + numThreadPoolHits
+				+ ", misses " + numThreadPoolMisses);
 		System.out.println("Network I/O: received " + numPacketsReceived
 				+ ", sent " + numPacketsSent);
 	}
@@ -63,6 +67,30 @@ public final class Stats {
 	/** The total number of TLB misses that have occurred. */
 	public int numTLBMisses = 0;
 
+	/**
+	 * The total number of address translations satisfied by the processor's
+	 * translation cache.
+	 */
+	public long numTranslationHits = 0;
+
+	/**
+	 * The total number of address translations that missed the processor's
+	 * translation cache and went to the page table or TLB.
+	 */
+	public long numTranslationMisses = 0;
+
+	/**
+	 * The total number of TCBs started on a pooled Java thread left behind by
+	 * a destroyed TCB.
+	 */
+	public int numThreadPoolHits = 0;
+
+	/**
+	 * The total number of TCBs that had to create a new Java thread because
+	 * the pool was empty.
+	 */
+	public int numThreadPoolMisses = 0;
+
 	/** The total number of packets Nachos has sent to the network. */
 	public int numPacketsSent = 0;
 
@@ -6,6 +6,7 @@ import nachos.security.*;
 import nachos.threads.KThread;
 
 import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
 import java.security.PrivilegedAction;
 
 /**
@@ -21,6 +22,16 @@ import java.security.PrivilegedAction;
  * <p>
  * Do not use the <i>synchronized</i> keyword <b>anywhere</b> in your code. It's
  * against the rules, <i>and</i> it can easily deadlock nachos.
+ * 
+ * <p>
+ * The limit on the number of TCBs can be changed with the
+ * <tt>TCB.maxThreads</tt> key.
+ * 
+ * <p>
+ * The Java thread of a destroyed TCB is kept in a pool and reused by the next
+ * TCB to start, rather than being left to exit, unless
+ * <tt>TCB.poolThreads</tt> is <tt>false</tt>. The pool's hits and misses are
+ * counted in <tt>Stats</tt>.
  */
 public final class TCB {
 	/**
@@ -39,6 +50,11 @@ public final class TCB {
 	public static void givePrivilege(Privilege privilege) {
 		TCB.privilege = privilege;
 		privilege.tcb = new TCBPrivilege();
+
+		threadLimit = Config.getInteger("TCB.maxThreads", maxThreads);
+		Lib.assertTrue(threadLimit > 0);
+
+		poolThreads = Config.getBoolean("TCB.poolThreads", true);
 	}
 
 	/**
@@ -68,7 +84,7 @@ public final class TCB {
 		 * Make sure there aren't too many running TCBs already. This limitation
 		 * exists in an effort to prevent wild thread usage.
 		 */
-		Lib.assertTrue(runningThreads.size() < maxThreads);
+		Lib.assertTrue(runningThreads.size() < threadLimit);
 
 		isFirstTCB = (currentTCB == null);
 
@@ -91,31 +107,47 @@ public final class TCB {
 
 		if (!isFirstTCB) {
 			/*
-			 * If this is not the first TCB, we have to make a new Java thread
-			 * to run it. Creating Java threads is a privileged operation.
+			 * If this is not the first TCB, it needs a Java thread of its own.
+			 * We take an idle one from the pool if there is one; otherwise we
+			 * have to make a new Java thread to run it. Creating Java threads
+			 * is a privileged operation.
 			 */
-			tcbTarget = new Runnable() {
-				public void run() {
-					threadroot();
-				}
-			};
-
-			privilege.doPrivileged(new Runnable() {
-				public void run() {
-					javaThread = new Thread(tcbTarget);
-				}
-			});
+			host = idleHosts;
+
+			if (host != null) {
+				idleHosts = host.nextIdle;
+				host.nextIdle = null;
+				privilege.stats.numThreadPoolHits++;
+			}
+			else {
+				host = new HostThread();
+				privilege.stats.numThreadPoolMisses++;
+
+				privilege.doPrivileged(new Runnable() {
+					public void run() {
+						host.javaThread = new Thread(host);
+					}
+				});
+			}
+
+			javaThread = host.javaThread;
 
 			/*
-			 * The Java thread hasn't yet started, but we need to get it
-			 * blocking in yield(). We do this by temporarily turning off the
-			 * current TCB, starting the new Java thread, and waiting for it to
+			 * The Java thread is either not yet started or parked in the pool,
+			 * but we need to get it blocking in yield(). We do this by
+			 * temporarily turning off the current TCB, handing this TCB to the
+			 * Java thread and starting or unparking it, and waiting for it to
 			 * wake us up from threadroot(). Once the new TCB wakes us up, it's
 			 * safe to context switch to the new TCB.
 			 */
 			currentTCB.running = false;
 
-			this.javaThread.start();
+			host.tcb = this;
+			if (host.javaThread.getState() == Thread.State.NEW)
+				host.javaThread.start();
+			else
+				LockSupport.unpark(host.javaThread);
+
 			currentTCB.waitForInterrupt();
 		}
 		else {
@@ -283,6 +315,16 @@ public final class TCB {
 		waitForInterrupt();
 
 		if (done) {
+			/*
+			 * Return our Java thread to the pool before waking up destroy(),
+			 * which may start another TCB on it straight away. The thread
+			 * picks up that TCB once it has unwound out of threadroot().
+			 */
+			if (poolThreads && host != null) {
+				host.nextIdle = idleHosts;
+				idleHosts = host;
+			}
+
 			currentTCB.interrupt();
 			throw new ThreadDeath();
 		}
@@ -291,32 +333,33 @@ public final class TCB {
 	}
 
 	/**
-	 * Waits on the monitor bound to this TCB until its <tt>running</tt> flag is
-	 * set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a TCB
-	 * needs to go to wait for its turn to run. This includes the ping-pong
-	 * process of starting and destroying TCBs, as well as in context switching
-	 * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
-	 * is updated by <tt>contextSwitch()</tt> before we get called.
+	 * Parks the Java thread bound to this TCB until its <tt>running</tt> flag
+	 * is set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a
+	 * TCB needs to go to wait for its turn to run. This includes the
+	 * ping-pong process of starting and destroying TCBs, as well as in context
+	 * switching from this TCB to another. We don't rely on
+	 * <tt>currentTCB</tt>, since it is updated by <tt>contextSwitch()</tt>
+	 * before we get called.
+	 * 
+	 * <p>
+	 * Parking rather than waiting on a monitor hands control directly to the
+	 * next thread.
 	 */
-	private synchronized void waitForInterrupt() {
-		while (!running) {
-			try {
-				wait();
-			}
-			catch (InterruptedException e) {
-			}
-		}
+	private void waitForInterrupt() {
+		while (!running)
+			LockSupport.park(this);
 	}
 
 	/**
 	 * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-	 * and signalling the monitor bound to it. Used in the ping-pong process of
-	 * starting and destroying TCBs, as well as in context switching to this
-	 * TCB.
+	 * and unparking the Java thread bound to it. Used in the ping-pong process
+	 * of starting and destroying TCBs, as well as in context switching to this
+	 * TCB. If that thread has not parked yet, its next <tt>park()</tt> returns
+	 * immediately, so the wakeup cannot be lost.
 	 */
-	private synchronized void interrupt() {
+	private void interrupt() {
 		running = true;
-		notify();
+		LockSupport.unpark(javaThread);
 	}
 
 	private void associateThread(KThread thread) {
@@ -342,10 +385,25 @@ public final class TCB {
 
 	/**
 	 * The maximum number of started, non-destroyed TCB's that can be in
-	 * existence.
+	 * existence, unless <tt>TCB.maxThreads</tt> is set.
 	 */
 	public static final int maxThreads = 250;
 
+	/** The limit actually enforced by <tt>start()</tt>. */
+	private static int threadLimit = maxThreads;
+
+	/** Whether the Java threads of destroyed TCBs are reused. */
+	private static boolean poolThreads = true;
+
+	/**
+	 * A stack of Java threads whose TCBs have been destroyed, linked through
+	 * <tt>HostThread.nextIdle</tt>. Pushed only by a doomed TCB in
+	 * <tt>yield()</tt>, while the TCB destroying it waits, and popped only by
+	 * the current TCB in <tt>start(Runnable)</tt>, so like the rest of the
+	 * TCB state it is never touched by two Java threads at once.
+	 */
+	private static HostThread idleHosts = null;
+
 	/**
 	 * A reference to the currently running TCB. It is initialized to
 	 * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
@@ -368,7 +426,7 @@ public final class TCB {
 	 * each TCB object. TCB objects are removed only in each of the
 	 * <tt>catch</tt> clauses of <tt>threadroot()</tt>, one of which is always
 	 * invoked on thread termination. The maximum number of threads in
-	 * <tt>runningThreads</tt> is limited to <tt>maxThreads</tt> by
+	 * <tt>runningThreads</tt> is limited to <tt>threadLimit</tt> by
 	 * <tt>start(Runnable)</tt>. If <tt>threadroot()</tt> drops the number of
 	 * TCB objects in <tt>runningThreads</tt> to zero, Nachos exits, so once the
 	 * first TCB is created, this vector is basically never empty.
@@ -401,9 +459,11 @@ public final class TCB {
 	 * and have not terminated. <tt>running</tt> is only <tt>true</tt> when the
 	 * associated Java thread ought to run ASAP. When starting or destroying a
 	 * TCB, this is temporarily true for a thread other than that of the current
-	 * TCB.
+	 * TCB. It is volatile because it is the only thing passed between the
+	 * Java threads when control is handed over; everything written before it
+	 * is set is visible to the thread that sees it set.
 	 */
-	private boolean running = false;
+	private volatile boolean running = false;
 
 	/**
 	 * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -418,7 +478,37 @@ public final class TCB {
 
 	private Runnable target;
 
-	private Runnable tcbTarget;
+	/**
+	 * The pooled Java thread running this TCB, or <tt>null</tt> for the first
+	 * TCB, which runs on the thread that started Nachos.
+	 */
+	private HostThread host = null;
+
+	/**
+	 * The body of a Java thread that runs TCBs. It runs one TCB until that TCB
+	 * is destroyed, then parks in the pool until <tt>start(Runnable)</tt>
+	 * hands it another. Without pooling it exits instead.
+	 */
+	private static class HostThread implements Runnable {
+		public void run() {
+			do {
+				while (tcb == null)
+					LockSupport.park(this);
+
+				TCB next = tcb;
+				tcb = null;
+
+				next.threadroot();
+			} while (poolThreads);
+		}
+
+		private Thread javaThread;
+
+		/** The TCB to run next, set by <tt>start(Runnable)</tt>. */
+		private volatile TCB tcb = null;
+
+		private HostThread nextIdle = null;
+	}
 
 	private static class TCBPrivilege implements Privilege.TCBPrivilege {
 		public void associateThread(KThread thread) {
@@ -24,7 +24,7 @@ public class PostOffice {
 	public PostOffice() {
 		messageReceived = new Semaphore(0);
 		messageSent = new Semaphore(0);
-		sendLock = new Lock();
+		sendLock = new Lock("PostOffice.sendLock");
 
 		queues = new SynchList[MailMessage.portLimit];
 		for (int i = 0; i < queues.length; i++)
@@ -114,10 +114,13 @@ public class PostOffice {
 			System.out.println("sending mail: " + mail);
 
 		sendLock.acquire();
+		boolean intStatus = Machine.interrupt().disable();
 
 		Machine.networkLink().send(mail.packet);
+		ThreadedKernel.scheduler.blockForIO(KThread.currentThread());
 		messageSent.P();
 
+		Machine.interrupt().restore(intStatus);
 		sendLock.release();
 	}
 
@@ -157,6 +157,24 @@ public abstract class Privilege {
 		 * user code.
 		 */
 		public void tick(boolean inKernelMode);
+
+		/**
+		 * Return the number of MIPS user instructions that can execute before
+		 * the next pending interrupt becomes due. Always at least 1.
+		 * 
+		 * @return the number of user instructions until the next interrupt.
+		 */
+		public long userTicksUntilDue();
+
+		/**
+		 * Advance the simulated time by the specified number of MIPS user
+		 * instructions at once. Equivalent to calling <tt>tick(false)</tt>
+		 * <i>numInstructions</i> times, provided <i>numInstructions</i> is no
+		 * more than <tt>userTicksUntilDue()</tt>.
+		 * 
+		 * @param numInstructions the number of user instructions executed.
+		 */
+		public void tickUser(int numInstructions);
 	}
 
 	/**
@@ -1,26 +1,31 @@
 package nachos.threads;
 
 import nachos.machine.*;
-import java.util.PriorityQueue;
-import java.util.TreeMap;
 
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
+ *
+ * <p>
+ * Sleeping threads are kept in a hierarchical timing wheel. Level <i>l</i>
+ * has 64 slots, each covering <tt>64<sup>l</sup></tt> ticks, and holds the
+ * threads whose wake times share everything but the lowest <i>l</i> + 1
+ * six-bit digits with the wheel's current time. Adding or removing a sleeper
+ * takes constant time, as does finding the next non-empty slot, since each
+ * level has a bitmap of its non-empty slots. As the wheel's time enters a
+ * slot of a higher level, the sleepers in that slot are spread over the
+ * lower levels, so each sleeper is moved at most once per level.
  */
 public class Alarm {
 	/**
 	 * Allocate a new Alarm. Set the machine's timer interrupt handler to this
 	 * alarm's callback.
-	 * 
+	 *
 	 * <p>
 	 * <b>Note</b>: Nachos will not function correctly with more than one alarm.
 	 */
-
 	public Alarm() {
-		// Allocate new threads.
-		// Using TreeMap to keep track of times as key & their KThread.
-		sleepThreads = new TreeMap<Long, KThread>();
+		now = Machine.timer().getTime();
 
 		Machine.timer().setInterruptHandler(new Runnable() {
 			public void run() {
@@ -31,30 +36,20 @@ public class Alarm {
 
 	/**
 	 * The timer interrupt handler. This is called by the machine's timer
-	 * periodically (approximately every 500 clock ticks). Causes the current
-	 * thread to yield, forcing a context switch if there is another thread that
-	 * should be run.
+	 * periodically (approximately every 500 clock ticks). Wakes every thread
+	 * whose wake time has passed, then causes the current thread to yield,
+	 * forcing a context switch if there is another thread that should be run.
 	 */
 	public void timerInterrupt() {
+		boolean intStatus = Machine.interrupt().disable();
 
-		// Needed for the atomic op
-		boolean status = Machine.interrupt().disable();
+		advance(Machine.timer().getTime());
 
-		// Loop gets all the threads with expired wait times
-		// Checks if Map is not empty & if the lowest key in the map's time (long)
-		// is less than the Machine's current time
-		while(!sleepThreads.isEmpty() && 
-			sleepThreads.firstKey() <= Machine.timer().getTime()) {
+		// charge the current thread for the quantum it just used up
+		ThreadedKernel.scheduler.preempt(KThread.currentThread());
 
-			// If so, it will make that KThread ready
-			// This will take the lowest key (time) & remove it from the map. 
-			sleepThreads.pollFirstEntry().getValue().ready();
-		}
-		
-		// Restore
-		Machine.interrupt().restore(status);
+		Machine.interrupt().restore(intStatus);
 
-		// Yield
 		KThread.yield();
 	}
 
@@ -62,29 +57,217 @@ public class Alarm {
 	 * Put the current thread to sleep for at least <i>x</i> ticks, waking it up
 	 * in the timer interrupt handler. The thread must be woken up (placed in
 	 * the scheduler ready set) during the first timer interrupt where
-	 * 
+	 *
 	 * <p>
 	 * <blockquote> (current time) >= (WaitUntil called time)+(x) </blockquote>
-	 * 
+	 *
 	 * @param x the minimum number of clock ticks to wait.
-	 * 
+	 *
 	 * @see nachos.machine.Timer#getTime()
 	 */
 	public void waitUntil(long x) {
+		boolean intStatus = Machine.interrupt().disable();
 
-		// for now, cheat just to get something working (busy waiting is bad)
-		long wakeTime = Machine.timer().getTime() + x;
+		KThread thread = KThread.currentThread();
+		if (thread.sleeper == null)
+			thread.sleeper = new Sleeper(thread);
 
-		// Atomic op
-		boolean status = Machine.interrupt().disable();
+		Sleeper sleeper = thread.sleeper;
+		sleeper.wakeTime = Math.max(Machine.timer().getTime() + x, now);
+		add(sleeper);
 
-		// Now place the thread in the waiting map.
-		sleepThreads.put(wakeTime, KThread.currentThread());
+		ThreadedKernel.scheduler.blockForIO(thread);
 		KThread.sleep();
 
-		Machine.interrupt().restore(status);
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Wake a thread sleeping in <tt>waitUntil()</tt> before its time is up.
+	 *
+	 * @param thread the thread to wake.
+	 * @return <tt>true</tt> if the thread was sleeping.
+	 */
+	public boolean cancel(KThread thread) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		Sleeper sleeper = thread.sleeper;
+		boolean sleeping = (sleeper != null && sleeper.level >= 0);
+
+		if (sleeping) {
+			remove(sleeper);
+			thread.ready();
+		}
+
+		Machine.interrupt().restore(intStatus);
+		return sleeping;
 	}
 
-	// Create priority queue needed for sleep threads
-	private TreeMap<Long, KThread> sleepThreads;
+	/**
+	 * Advance the wheel to <i>time</i>, waking every sleeper due by then.
+	 */
+	private void advance(long time) {
+		while (true) {
+			// the lowest non-empty level holds the earliest sleepers
+			int level = 0;
+			long bits = 0;
+			for (; level < numLevels; level++) {
+				bits = occupied[level] & (-1L << digit(now, level));
+				if (bits != 0)
+					break;
+			}
+
+			if (level == numLevels) {
+				setNow(time);
+				return;
+			}
+
+			int slot = Long.numberOfTrailingZeros(bits);
+			long slotStart = (now >>> shift(level + 1) << shift(level + 1))
+					| ((long) slot << shift(level));
+
+			if (slotStart > time) {
+				setNow(time);
+				return;
+			}
+
+			setNow(slotStart);
+
+			if (level == 0)
+				expire(slot);
+		}
+	}
+
+	/**
+	 * Move the wheel's time forward to <i>time</i>, which must not pass any
+	 * sleeper's wake time. Each higher-level slot the time enters is spread
+	 * over the levels below it.
+	 */
+	private void setNow(long time) {
+		long oldNow = now;
+		now = time;
+
+		for (int level = numLevels - 1; level > 0; level--) {
+			if ((oldNow >>> shift(level)) == (time >>> shift(level)))
+				continue;
+
+			int slot = digit(time, level);
+
+			Sleeper sleeper = slots[level][slot];
+			slots[level][slot] = null;
+			occupied[level] &= ~(1L << slot);
+
+			while (sleeper != null) {
+				Sleeper next = sleeper.next;
+				add(sleeper);
+				sleeper = next;
+			}
+		}
+	}
+
+	/**
+	 * Wake every sleeper in a level 0 slot, all of which are due now.
+	 */
+	private void expire(int slot) {
+		Sleeper sleeper = slots[0][slot];
+		slots[0][slot] = null;
+		occupied[0] &= ~(1L << slot);
+
+		while (sleeper != null) {
+			Sleeper next = sleeper.next;
+			sleeper.level = -1;
+			sleeper.prev = sleeper.next = null;
+			sleeper.thread.ready();
+			sleeper = next;
+		}
+	}
+
+	/**
+	 * Put a sleeper in the slot for its wake time, on the lowest level whose
+	 * slots are wide enough to tell its wake time apart from <tt>now</tt>.
+	 */
+	private void add(Sleeper sleeper) {
+		int level = 0;
+		while (level < numLevels - 1
+				&& (sleeper.wakeTime >>> shift(level + 1))
+						!= (now >>> shift(level + 1)))
+			level++;
+
+		int slot = digit(sleeper.wakeTime, level);
+
+		sleeper.level = level;
+		sleeper.slot = slot;
+		sleeper.prev = null;
+		sleeper.next = slots[level][slot];
+		if (sleeper.next != null)
+			sleeper.next.prev = sleeper;
+		slots[level][slot] = sleeper;
+
+		occupied[level] |= 1L << slot;
+	}
+
+	private void remove(Sleeper sleeper) {
+		int level = sleeper.level, slot = sleeper.slot;
+
+		if (sleeper.prev == null)
+			slots[level][slot] = sleeper.next;
+		else
+			sleeper.prev.next = sleeper.next;
+
+		if (sleeper.next != null)
+			sleeper.next.prev = sleeper.prev;
+
+		if (slots[level][slot] == null)
+			occupied[level] &= ~(1L << slot);
+
+		sleeper.level = -1;
+		sleeper.prev = sleeper.next = null;
+	}
+
+	private static int shift(int level) {
+		return (level < numLevels) ? level * slotBits : 63;
+	}
+
+	private static int digit(long time, int level) {
+		return (int) (time >>> shift(level)) & (numSlots - 1);
+	}
+
+	/**
+	 * A thread's entry in the wheel. Each thread has one, created the first
+	 * time it sleeps and reused after that.
+	 */
+	static class Sleeper {
+		Sleeper(KThread thread) {
+			this.thread = thread;
+		}
+
+		private KThread thread;
+
+		private long wakeTime;
+
+		/** The level holding this sleeper, or -1 if it is not sleeping. */
+		private int level = -1;
+
+		private int slot;
+
+		private Sleeper prev, next;
+	}
+
+	private static final int slotBits = 6;
+
+	private static final int numSlots = 1 << slotBits;
+
+	/** Enough levels to cover every non-negative <tt>long</tt> time. */
+	private static final int numLevels = (63 + slotBits - 1) / slotBits;
+
+	/** The time up to which the wheel has expired its sleepers. */
+	private long now;
+
+	private Sleeper[][] slots = new Sleeper[numLevels][numSlots];
+
+	/**
+	 * Bit <i>s</i> of entry <i>l</i> is set if and only if slot <i>s</i> of
+	 * level <i>l</i> is not empty.
+	 */
+	private long[] occupied = new long[numLevels];
 }
@@ -0,0 +1,345 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+
+/**
+ * A kernel that measures the wall-clock cost of the threading primitives, so
+ * that changes to the scheduler or to <tt>TCB</tt> can be compared. It times
+ * <tt>KThread.yield()</tt> round trips, <tt>fork()</tt>/<tt>join()</tt>,
+ * contended <tt>Lock</tt> handoffs, read-mostly access through a
+ * <tt>ReadWriteLock</tt> and through a <tt>Lock</tt>, <tt>Communicator</tt>
+ * messages, and words sent through <tt>Channel</tt>s, each
+ * with 2 threads, 100 threads, and as many threads as <tt>TCB</tt> allows,
+ * and prints the throughput and latency percentiles of each.
+ *
+ * <p>
+ * To use it, set <tt>Kernel.kernel</tt> to
+ * <tt>nachos.threads.BenchKernel</tt>. Each benchmark performs about
+ * <tt>BenchKernel.operations</tt> operations, split between its threads.
+ */
+public class BenchKernel extends ThreadedKernel {
+	/**
+	 * Allocate a new benchmark kernel.
+	 */
+	public BenchKernel() {
+		super();
+	}
+
+	/**
+	 * Initialize this kernel.
+	 */
+	public void initialize(String[] args) {
+		super.initialize(args);
+
+		operations = Config.getInteger("BenchKernel.operations", 20000);
+		Lib.assertTrue(operations > 0);
+	}
+
+	/**
+	 * The benchmarks replace the self tests.
+	 */
+	public void selfTest() {
+	}
+
+	/**
+	 * Run every benchmark at each thread count, print the results, and halt.
+	 */
+	public void run() {
+		// the main and idle threads also need TCBs
+		int maxThreads = Config
+				.getInteger("TCB.maxThreads", TCB.maxThreads) - 2;
+		Lib.assertTrue(maxThreads >= 2);
+
+		int[] threadCounts = new int[] { 2, 100, maxThreads };
+
+		System.out.println("BenchKernel: " + operations
+				+ " operations per benchmark");
+
+		for (int i = 0; i < threadCounts.length; i++) {
+			int numThreads = threadCounts[i];
+
+			// skip counts that are out of range or repeat the previous one
+			if (numThreads > maxThreads
+					|| (i > 0 && numThreads <= threadCounts[i - 1]))
+				continue;
+
+			benchYield(numThreads);
+			benchForkJoin(numThreads);
+			benchLock(numThreads);
+			benchReaders(numThreads, true);
+			benchReaders(numThreads, false);
+			benchCommunicator(numThreads);
+			benchChannel(numThreads, 0, 1);
+			benchChannel(numThreads, 64, 1);
+			benchChannel(numThreads, 64, 16);
+		}
+
+		terminate();
+	}
+
+	/**
+	 * Time each <tt>yield()</tt> call, which returns once every other thread
+	 * has run.
+	 */
+	private void benchYield(int numThreads) {
+		final int perThread = Math.max(1, operations / numThreads);
+		final long[] samples = new long[numThreads * perThread];
+
+		long start = System.nanoTime(), startTicks = Machine.timer().getTime();
+
+		forkAndJoin(numThreads, new Task() {
+			public void run(int id) {
+				for (int i = 0; i < perThread; i++) {
+					long time = System.nanoTime();
+					KThread.yield();
+					samples[id * perThread + i] = System.nanoTime() - time;
+				}
+			}
+		});
+
+		report("yield", numThreads, samples, System.nanoTime() - start,
+				Machine.timer().getTime() - startTicks);
+	}
+
+	/**
+	 * Repeatedly fork a group of threads that exit immediately, and time each
+	 * one from its <tt>fork()</tt> until <tt>join()</tt> returns.
+	 */
+	private void benchForkJoin(int numThreads) {
+		int rounds = Math.max(1, operations / numThreads);
+		long[] samples = new long[rounds * numThreads];
+
+		KThread[] threads = new KThread[numThreads];
+		long[] forked = new long[numThreads];
+
+		Runnable exit = new Runnable() {
+			public void run() {
+			}
+		};
+
+		long start = System.nanoTime(), startTicks = Machine.timer().getTime();
+
+		for (int round = 0; round < rounds; round++) {
+			for (int i = 0; i < numThreads; i++) {
+				forked[i] = System.nanoTime();
+				threads[i] = new KThread(exit).setName("bench #" + i);
+				threads[i].fork();
+			}
+
+			for (int i = 0; i < numThreads; i++) {
+				threads[i].join();
+				samples[round * numThreads + i] = System.nanoTime() - forked[i];
+			}
+		}
+
+		report("fork/join", numThreads, samples, System.nanoTime() - start,
+				Machine.timer().getTime() - startTicks);
+	}
+
+	/**
+	 * Time each <tt>acquire()</tt> of a lock whose holder yields before
+	 * releasing it, so that every acquire waits for a handoff.
+	 */
+	private void benchLock(int numThreads) {
+		final int perThread = Math.max(1, operations / numThreads);
+		final long[] samples = new long[numThreads * perThread];
+		final Lock lock = new Lock();
+
+		long start = System.nanoTime(), startTicks = Machine.timer().getTime();
+
+		forkAndJoin(numThreads, new Task() {
+			public void run(int id) {
+				for (int i = 0; i < perThread; i++) {
+					long time = System.nanoTime();
+					lock.acquire();
+					samples[id * perThread + i] = System.nanoTime() - time;
+
+					KThread.yield();
+					lock.release();
+				}
+			}
+		});
+
+		report("lock handoff", numThreads, samples, System.nanoTime() - start,
+				Machine.timer().getTime() - startTicks);
+	}
+
+	/**
+	 * Time each acquire of a read-mostly lock, one in <tt>writeInterval</tt>
+	 * of them for writing, where the holder sleeps until the next timer
+	 * interrupt before releasing it, as if waiting for a device. With a
+	 * <tt>ReadWriteLock</tt>, readers hold the lock and sleep together; with a
+	 * plain <tt>Lock</tt>, every access sleeps in turn.
+	 */
+	private void benchReaders(int numThreads, boolean readWrite) {
+		final int perThread = Math.max(1, operations / numThreads);
+		final long[] samples = new long[numThreads * perThread];
+		final ReadWriteLock rwLock = readWrite ? new ReadWriteLock() : null;
+		final Lock lock = readWrite ? null : new Lock();
+
+		long start = System.nanoTime(), startTicks = Machine.timer().getTime();
+
+		forkAndJoin(numThreads, new Task() {
+			public void run(int id) {
+				for (int i = 0; i < perThread; i++) {
+					boolean write = ((id + i) % writeInterval == 0);
+
+					long time = System.nanoTime();
+					if (lock != null)
+						lock.acquire();
+					else if (write)
+						rwLock.acquireWrite();
+					else
+						rwLock.acquireRead();
+					samples[id * perThread + i] = System.nanoTime() - time;
+
+					ThreadedKernel.alarm.waitUntil(1);
+
+					if (lock != null)
+						lock.release();
+					else if (write)
+						rwLock.releaseWrite();
+					else
+						rwLock.releaseRead();
+				}
+			}
+		});
+
+		report(readWrite ? "rw lock, 1/" + writeInterval + " writes"
+				: "lock, 1/" + writeInterval + " writes", numThreads, samples,
+				System.nanoTime() - start, Machine.timer().getTime()
+						- startTicks);
+	}
+
+	/**
+	 * Pair half of the threads as speakers with the other half as listeners on
+	 * one communicator, and time each <tt>speak()</tt>.
+	 */
+	private void benchCommunicator(int numThreads) {
+		final int numSpeakers = numThreads / 2;
+		final int perThread = Math.max(1, operations / numSpeakers);
+		final long[] samples = new long[numSpeakers * perThread];
+		final Communicator communicator = new Communicator();
+
+		long start = System.nanoTime(), startTicks = Machine.timer().getTime();
+
+		forkAndJoin(numSpeakers * 2, new Task() {
+			public void run(int id) {
+				for (int i = 0; i < perThread; i++) {
+					if (id < numSpeakers) {
+						long time = System.nanoTime();
+						communicator.speak(i);
+						samples[id * perThread + i] = System.nanoTime() - time;
+					}
+					else {
+						communicator.listen();
+					}
+				}
+			}
+		});
+
+		report("speak/listen", numSpeakers * 2, samples, System.nanoTime()
+				- start, Machine.timer().getTime() - startTicks);
+	}
+
+	/**
+	 * Pair half of the threads as speakers with the other half as listeners on
+	 * one channel of the given capacity, moving words in batches of
+	 * <i>batch</i>. Time each <tt>speakAll()</tt>, and count it as
+	 * <i>batch</i> operations of equal cost, so that the throughput is in
+	 * words.
+	 */
+	private void benchChannel(int numThreads, int capacity, final int batch) {
+		final int numSpeakers = numThreads / 2;
+		final int perThread = Math.max(batch, operations / numSpeakers
+				/ batch * batch);
+		final long[] samples = new long[numSpeakers * perThread];
+		final Channel channel = new Channel(capacity);
+
+		long start = System.nanoTime(), startTicks = Machine.timer().getTime();
+
+		forkAndJoin(numSpeakers * 2, new Task() {
+			public void run(int id) {
+				int[] words = new int[batch];
+
+				for (int i = 0; i < perThread; i += batch) {
+					if (id < numSpeakers) {
+						long time = System.nanoTime();
+						channel.speakAll(words);
+						Arrays.fill(samples, id * perThread + i, id
+								* perThread + i + batch,
+								(System.nanoTime() - time) / batch);
+					}
+					else {
+						channel.listenAll(words);
+					}
+				}
+			}
+		});
+
+		report("channel " + capacity + ", batch " + batch, numSpeakers * 2,
+				samples, System.nanoTime() - start, Machine.timer().getTime()
+						- startTicks);
+	}
+
+	/**
+	 * Run <i>task</i> in <i>numThreads</i> new threads, and wait for all of
+	 * them to finish.
+	 */
+	private void forkAndJoin(int numThreads, final Task task) {
+		KThread[] threads = new KThread[numThreads];
+
+		for (int i = 0; i < numThreads; i++) {
+			final int id = i;
+
+			threads[i] = new KThread(new Runnable() {
+				public void run() {
+					task.run(id);
+				}
+			}).setName("bench #" + i);
+			threads[i].fork();
+		}
+
+		for (int i = 0; i < numThreads; i++)
+			threads[i].join();
+	}
+
+	/**
+	 * Print the throughput of a benchmark, the simulated ticks it took, and
+	 * the percentiles of its per-operation latencies.
+	 */
+	private void report(String name, int numThreads, long[] samples,
+			long elapsed, long ticks) {
+		Arrays.sort(samples);
+
+		String line = name + ", " + numThreads + " threads: ";
+		while (line.length() < 32)
+			line += " ";
+
+		System.out.println(line + samples.length + " ops, "
+				+ (samples.length * 1000000000L / Math.max(elapsed, 1))
+				+ " ops/s, " + ticks + " ticks, p50 "
+				+ micros(percentile(samples, 50)) + ", p90 "
+				+ micros(percentile(samples, 90)) + ", p99 "
+				+ micros(percentile(samples, 99)) + ", max "
+				+ micros(samples[samples.length - 1]));
+	}
+
+	private static long percentile(long[] sorted, int percent) {
+		return sorted[(int) ((long) (sorted.length - 1) * percent / 100)];
+	}
+
+	private static String micros(long nanos) {
+		return (nanos / 1000) + "." + (nanos / 100 % 10) + " us";
+	}
+
+	private interface Task {
+		void run(int id);
+	}
+
+	private int operations;
+
+	private static final int writeInterval = 16;
+}
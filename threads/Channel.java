@@ -0,0 +1,363 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <i>channel</i> carries 32-bit words from speaking threads to listening
+ * threads, in order, through a ring buffer holding up to <i>capacity</i>
+ * words. A speaker waits only while the buffer is full, and a listener only
+ * while it is empty. A channel with capacity 0 is a rendezvous, like a
+ * <tt>Communicator</tt>: a speaker waits until listeners have taken all its
+ * words.
+ *
+ * <p>
+ * Words can be moved in batches. <tt>speakAll()</tt> and
+ * <tt>listenAll()</tt> wait until the whole batch is moved, while
+ * <tt>speakSome()</tt> and <tt>listenSome()</tt> move what they can without
+ * waiting. Words go straight from a speaker's array to a waiting listener's
+ * array when possible, and a waiting thread is only woken once its whole batch
+ * is done, so a batch costs at most one wakeup no matter how many words it
+ * holds.
+ *
+ * <p>
+ * The buffered words always come before the words of waiting speakers. So
+ * listeners only wait when the buffer is empty and no speaker is waiting, and
+ * speakers only wait when the buffer is full and no listener is waiting.
+ *
+ * <p>
+ * Waiting speakers and listeners are kept in thread queues from the
+ * scheduler, so the scheduler decides which of them is served next. A thread
+ * keeps what it has yet to move in its own <tt>Transfer</tt>, created the
+ * first time it uses a channel and reused after that, so waiting allocates
+ * nothing.
+ */
+public class Channel {
+	/**
+	 * Allocate a new channel.
+	 *
+	 * @param capacity the number of words the channel can buffer.
+	 */
+	public Channel(int capacity) {
+		Lib.assertTrue(capacity >= 0);
+
+		buffer = new int[capacity];
+	}
+
+	/**
+	 * Send one word, waiting until it is buffered or taken by a listener.
+	 *
+	 * @param word the word to send.
+	 */
+	public void speak(int word) {
+		int[] slot = transfer(KThread.currentThread()).word;
+		slot[0] = word;
+		speakAll(slot, 0, 1);
+	}
+
+	/**
+	 * Receive one word, waiting until there is one.
+	 *
+	 * @return the word received.
+	 */
+	public int listen() {
+		int[] slot = transfer(KThread.currentThread()).word;
+		listenAll(slot, 0, 1);
+		return slot[0];
+	}
+
+	/**
+	 * Send every word of an array. Equivalent to
+	 * <tt>speakAll(words, 0, words.length)</tt>.
+	 *
+	 * @param words the words to send.
+	 */
+	public void speakAll(int[] words) {
+		speakAll(words, 0, words.length);
+	}
+
+	/**
+	 * Send <i>length</i> words from <i>words</i>, starting at <i>offset</i>.
+	 * Waits until all of them are buffered or taken by listeners.
+	 *
+	 * @param words the array holding the words to send.
+	 * @param offset the index of the first word to send.
+	 * @param length the number of words to send.
+	 */
+	public void speakAll(int[] words, int offset, int length) {
+		Lib.assertTrue(offset >= 0 && length >= 0
+				&& offset + length <= words.length);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		int sent = send(words, offset, length);
+		if (sent < length) {
+			KThread thread = KThread.currentThread();
+			transfer(thread).set(words, offset + sent, length - sent);
+
+			numSpeakersWaiting++;
+			speakers.waitForAccess(thread);
+			KThread.sleep();
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Send as many of <i>length</i> words from <i>words</i>, starting at
+	 * <i>offset</i>, as can be sent without waiting.
+	 *
+	 * @param words the array holding the words to send.
+	 * @param offset the index of the first word to send.
+	 * @param length the number of words to try to send.
+	 * @return the number of words sent.
+	 */
+	public int speakSome(int[] words, int offset, int length) {
+		Lib.assertTrue(offset >= 0 && length >= 0
+				&& offset + length <= words.length);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		int sent = send(words, offset, length);
+
+		Machine.interrupt().restore(intStatus);
+		return sent;
+	}
+
+	/**
+	 * Fill an array with received words. Equivalent to
+	 * <tt>listenAll(words, 0, words.length)</tt>.
+	 *
+	 * @param words the array to fill.
+	 */
+	public void listenAll(int[] words) {
+		listenAll(words, 0, words.length);
+	}
+
+	/**
+	 * Receive <i>length</i> words into <i>words</i>, starting at
+	 * <i>offset</i>. Waits until all of them have been received.
+	 *
+	 * @param words the array to receive the words in.
+	 * @param offset the index to receive the first word at.
+	 * @param length the number of words to receive.
+	 */
+	public void listenAll(int[] words, int offset, int length) {
+		Lib.assertTrue(offset >= 0 && length >= 0
+				&& offset + length <= words.length);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		int received = receive(words, offset, length);
+		if (received < length) {
+			KThread thread = KThread.currentThread();
+			transfer(thread).set(words, offset + received, length - received);
+
+			numListenersWaiting++;
+			listeners.waitForAccess(thread);
+			KThread.sleep();
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Receive as many of <i>length</i> words into <i>words</i>, starting at
+	 * <i>offset</i>, as can be received without waiting.
+	 *
+	 * @param words the array to receive the words in.
+	 * @param offset the index to receive the first word at.
+	 * @param length the number of words to try to receive.
+	 * @return the number of words received.
+	 */
+	public int listenSome(int[] words, int offset, int length) {
+		Lib.assertTrue(offset >= 0 && length >= 0
+				&& offset + length <= words.length);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		int received = receive(words, offset, length);
+
+		Machine.interrupt().restore(intStatus);
+		return received;
+	}
+
+	/**
+	 * Hand words to the waiting listeners, then put what is left in the
+	 * buffer, as far as it goes.
+	 *
+	 * @return the number of words sent.
+	 */
+	private int send(int[] words, int offset, int length) {
+		int sent = 0;
+
+		while (sent < length && nextListener()) {
+			int n = Math.min(length - sent, listener.length);
+			System.arraycopy(words, offset + sent, listener.words,
+					listener.offset, n);
+			sent += n;
+
+			if (listener.advance(n))
+				listener = null;
+		}
+
+		while (sent < length && count < buffer.length) {
+			int tail = (head + count) % buffer.length;
+			int n = Math.min(length - sent, Math.min(buffer.length - count,
+					buffer.length - tail));
+
+			System.arraycopy(words, offset + sent, buffer, tail, n);
+			count += n;
+			sent += n;
+		}
+
+		return sent;
+	}
+
+	/**
+	 * Take words from the buffer, then straight from the waiting speakers,
+	 * and refill the buffer from the speakers still waiting.
+	 *
+	 * @return the number of words received.
+	 */
+	private int receive(int[] words, int offset, int length) {
+		int received = 0;
+
+		while (received < length && count > 0) {
+			int n = Math.min(length - received, Math.min(count, buffer.length
+					- head));
+
+			System.arraycopy(buffer, head, words, offset + received, n);
+			head = (head + n) % buffer.length;
+			count -= n;
+			received += n;
+		}
+
+		while (received < length && nextSpeaker()) {
+			int n = Math.min(length - received, speaker.length);
+			System.arraycopy(speaker.words, speaker.offset, words, offset
+					+ received, n);
+			received += n;
+
+			if (speaker.advance(n))
+				speaker = null;
+		}
+
+		while (count < buffer.length && nextSpeaker()) {
+			int tail = (head + count) % buffer.length;
+			int n = Math.min(speaker.length, Math.min(buffer.length - count,
+					buffer.length - tail));
+
+			System.arraycopy(speaker.words, speaker.offset, buffer, tail, n);
+			count += n;
+
+			if (speaker.advance(n))
+				speaker = null;
+		}
+
+		return received;
+	}
+
+	/**
+	 * Make sure <tt>speaker</tt> is set, taking the next speaker from the
+	 * queue if necessary.
+	 *
+	 * @return <tt>true</tt> if there is a waiting speaker.
+	 */
+	private boolean nextSpeaker() {
+		if (speaker == null && numSpeakersWaiting > 0) {
+			numSpeakersWaiting--;
+			speaker = speakers.nextThread().transfer;
+		}
+
+		return (speaker != null);
+	}
+
+	/**
+	 * Make sure <tt>listener</tt> is set, taking the next listener from the
+	 * queue if necessary.
+	 *
+	 * @return <tt>true</tt> if there is a waiting listener.
+	 */
+	private boolean nextListener() {
+		if (listener == null && numListenersWaiting > 0) {
+			numListenersWaiting--;
+			listener = listeners.nextThread().transfer;
+		}
+
+		return (listener != null);
+	}
+
+	private static Transfer transfer(KThread thread) {
+		if (thread.transfer == null)
+			thread.transfer = new Transfer(thread);
+
+		return thread.transfer;
+	}
+
+	/**
+	 * The words a waiting thread has yet to send or receive. Each thread has
+	 * one, created the first time it uses a channel and reused after that.
+	 */
+	static class Transfer {
+		Transfer(KThread thread) {
+			this.thread = thread;
+		}
+
+		private void set(int[] words, int offset, int length) {
+			this.words = words;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		/**
+		 * Mark <i>n</i> more words as moved, and wake the thread if that was
+		 * the last of them.
+		 *
+		 * @return <tt>true</tt> if the transfer is done.
+		 */
+		private boolean advance(int n) {
+			offset += n;
+			length -= n;
+
+			if (length > 0)
+				return false;
+
+			words = null;
+			thread.ready();
+			return true;
+		}
+
+		private KThread thread;
+
+		private int[] words;
+
+		private int offset, length;
+
+		/** Holds the word of <tt>speak()</tt> or <tt>listen()</tt>. */
+		private int[] word = new int[1];
+	}
+
+	/** The buffered words, <tt>count</tt> of them starting at <tt>head</tt>. */
+	private int[] buffer;
+
+	private int head = 0, count = 0;
+
+	/**
+	 * The waiting speakers and listeners. No thread holds a channel while
+	 * others wait for it, so there is no one to donate priority to.
+	 */
+	private ThreadQueue speakers = ThreadedKernel.scheduler
+			.newThreadQueue(false);
+
+	private ThreadQueue listeners = ThreadedKernel.scheduler
+			.newThreadQueue(false);
+
+	/** The number of threads in each queue. */
+	private int numSpeakersWaiting = 0, numListenersWaiting = 0;
+
+	/**
+	 * The speaker and listener being served, taken from their queues but not
+	 * yet done, or <tt>null</tt>.
+	 */
+	private Transfer speaker = null, listener = null;
+}
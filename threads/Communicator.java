@@ -8,32 +8,16 @@ import nachos.machine.*;
  * threads can be waiting to <i>listen</i>. But there should never be a time
  * when both a speaker and a listener are waiting, because the two threads can
  * be paired off at this point.
+ * 
+ * <p>
+ * A communicator is a <tt>Channel</tt> with no buffer, so a speaker hands its
+ * word straight to a listener.
  */
 public class Communicator {
-
-	// Initialize all variables & objects
-	private Integer buff;
-	private int ret_val;
-	private Lock lock;
-	private Condition rtn;
-	private Condition speak;
-	private Condition listen;
-	
 	/**
 	 * Allocate a new communicator.
 	 */
 	public Communicator() {
-
-		// Int buffer
-		buff = null; 
-
-		// Lock
-		lock = new Lock();
-
-		// Conditions
-		rtn = new Condition(lock);		
-		speak = new Condition(lock);
-		listen = new Condition(lock);
 	}
 
 	/**
@@ -47,24 +31,7 @@ public class Communicator {
 	 * @param word the integer to transfer.
 	 */
 	public void speak(int word) {
-
-		// Acquire the lock
-		lock.acquire();
-
-		while (buff != null)
-			speak.sleep();
-
-		// Input the word into the buffer
-		buff = word;
-
-		// Wake the listener
-		listen.wake();
-
-		// Sleep the return condition
-		rtn.sleep();
-
-		// Release the lock
-		lock.release();
+		channel.speak(word);
 	}
 
 	/**
@@ -74,25 +41,8 @@ public class Communicator {
 	 * @return the integer transferred.
 	 */
 	public int listen() {
-
-		// acquire the lock
-		lock.acquire();
-
-		// if the buffer is empty
-		while (buff == null)
-			listen.sleep();
-
-		// Store word from buffer & clear buffer
-		ret_val = buff.intValue();
-		buff = null;
-
-		// Wake up the conditions
-		speak.wake();
-		rtn.wake();
-
-		// Release the lock
-		lock.release();
-
-		return ret_val;
+		return channel.listen();
 	}
+
+	private Channel channel = new Channel(0);
 }
@@ -0,0 +1,696 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * An earliest-deadline-first scheduler. Every queue gives access to the
+ * waiting thread with the earliest deadline. Threads without a deadline come
+ * after every thread with one, and threads with equal deadlines are dequeued in
+ * the order they began waiting, so threads without deadlines share the
+ * processor round-robin.
+ *
+ * <p>
+ * A thread can be given a one-time absolute deadline with
+ * <tt>setDeadline()</tt>, or made periodic with <tt>setPeriodic()</tt>. A
+ * periodic thread is released every period, must finish each job within the
+ * given budget of ticks, and has the end of the period as its deadline. It
+ * calls <tt>waitForNextPeriod()</tt> at the end of each job, which records
+ * whether the job missed its deadline and sleeps until the next release. Jobs
+ * whose whole period passed while an earlier job overran are skipped. A
+ * periodic thread is only admitted if the total utilization, the sum of
+ * <tt>budget / period</tt> over all periodic threads, stays within
+ * <tt>EDFScheduler.maxUtilization</tt>.
+ *
+ * <p>
+ * Deadlines are inherited through locks and joins: a thread that holds a lock
+ * or is being joined runs with the earliest deadline of the threads waiting
+ * for it. When Nachos halts, the jobs, deadline misses and lateness of every
+ * thread that is still periodic are printed, with the totals of the threads
+ * that have stopped being periodic and the percentiles of the response times
+ * of all jobs. The response times are kept in a histogram of fixed size, so
+ * the percentiles are exact below 32 ticks and within 1/16 above that.
+ *
+ * <p>
+ * A thread released by the alarm is woken in the timer interrupt, which then
+ * yields, so a newly released job with an earlier deadline preempts the
+ * current thread at once.
+ */
+public class EDFScheduler extends Scheduler {
+	/**
+	 * Allocate a new EDF scheduler.
+	 */
+	public EDFScheduler() {
+		maxUtilization = Config.getDouble("EDFScheduler.maxUtilization", 1.0);
+		Lib.assertTrue(maxUtilization > 0);
+
+		Machine.addHaltHandler(new Runnable() {
+			public void run() {
+				print();
+			}
+		});
+	}
+
+	/**
+	 * Allocate a new EDF thread queue.
+	 *
+	 * @param transferPriority <tt>true</tt> if the owning thread should
+	 * inherit the earliest deadline of the threads waiting on this queue.
+	 * @return a new EDF thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new DeadlineQueue(transferPriority);
+	}
+
+	/**
+	 * Give a thread a one-time absolute deadline, or take its deadline away.
+	 * Must be called with interrupts disabled.
+	 *
+	 * @param thread the thread whose deadline to set.
+	 * @param deadline the time by which the thread should finish its work, or
+	 * <tt>noDeadline</tt>.
+	 */
+	public void setDeadline(KThread thread, long deadline) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		getThreadState(thread).setDeadline(deadline);
+	}
+
+	/**
+	 * Return the deadline of a thread, not counting inherited deadlines. Must
+	 * be called with interrupts disabled.
+	 *
+	 * @param thread the thread whose deadline to return.
+	 * @return the thread's deadline, or <tt>noDeadline</tt>.
+	 */
+	public long getDeadline(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getThreadState(thread).deadline;
+	}
+
+	/**
+	 * Make a thread periodic, if doing so keeps the total utilization within
+	 * bounds. Its first job is released now. A thread that is already periodic
+	 * gives up its old reservation for the new one, or keeps the old one if
+	 * the new one is rejected. Must be called with interrupts disabled.
+	 *
+	 * @param thread the thread to make periodic.
+	 * @param period the ticks between releases, which is also the relative
+	 * deadline of each job.
+	 * @param budget the ticks each job is expected to run for.
+	 * @return <tt>true</tt> if the thread was admitted.
+	 */
+	public boolean setPeriodic(KThread thread, long period, long budget) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(period > 0 && budget > 0 && budget <= period);
+
+		ThreadState state = getThreadState(thread);
+
+		double available = maxUtilization - utilization;
+		if (state.isPeriodic)
+			available += state.utilization();
+
+		if ((double) budget / period > available) {
+			numRejected++;
+			return false;
+		}
+
+		if (state.isPeriodic) {
+			utilization -= state.utilization();
+		}
+		else {
+			state.periodicIndex = periodic.size();
+			periodic.add(state);
+			numAdmitted++;
+		}
+
+		state.isPeriodic = true;
+		state.period = period;
+		state.budget = budget;
+		utilization += state.utilization();
+
+		state.release = Machine.timer().getTime();
+		state.setDeadline(state.release + period);
+
+		return true;
+	}
+
+	/**
+	 * Make a periodic thread aperiodic again, with no deadline, releasing its
+	 * reservation. Its record of jobs is added to the totals of the threads
+	 * that are no longer periodic. Must be called with interrupts disabled.
+	 *
+	 * @param thread the thread to make aperiodic.
+	 */
+	public void clearPeriodic(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		ThreadState state = getThreadState(thread);
+		if (!state.isPeriodic)
+			return;
+
+		utilization -= state.utilization();
+		state.isPeriodic = false;
+		state.setDeadline(noDeadline);
+
+		// fold its record into the totals, and swap the last one into its slot
+		finishedJobs += state.numJobs;
+		finishedMisses += state.numMisses;
+		finishedSkipped += state.numSkipped;
+		finishedWorstLateness = Math.max(finishedWorstLateness,
+				state.worstLateness);
+		state.numJobs = state.numMisses = 0;
+		state.numSkipped = state.worstLateness = 0;
+
+		ThreadState last = periodic.remove(periodic.size() - 1);
+		if (last != state) {
+			periodic.set(state.periodicIndex, last);
+			last.periodicIndex = state.periodicIndex;
+		}
+		state.periodicIndex = -1;
+	}
+
+	/**
+	 * Called by a periodic thread when it finishes a job. Record whether the
+	 * job met its deadline, and sleep until the next job is released.
+	 *
+	 * <p>
+	 * A job that overran by more than a period has used up the periods of the
+	 * jobs released after it. Those jobs are skipped, and counted as such,
+	 * rather than run back to back after their deadlines, so the next job is
+	 * the one released in the period that is under way now. Interrupts stay
+	 * disabled until the thread is asleep, so the time the sleep is computed
+	 * from cannot go stale.
+	 */
+	public void waitForNextPeriod() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		ThreadState state = getThreadState(KThread.currentThread());
+		Lib.assertTrue(state.isPeriodic);
+
+		long time = Machine.timer().getTime();
+		state.finishJob(time);
+
+		long periods = Math.max((time - state.release) / state.period, 1);
+		state.numSkipped += periods - 1;
+
+		state.release += periods * state.period;
+		state.setDeadline(state.release + state.period);
+
+		if (state.release > time)
+			ThreadedKernel.alarm.waitUntil(state.release - time);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Release the reservation of a periodic thread that finishes.
+	 */
+	public void finish(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		clearPeriodic(thread);
+	}
+
+	/**
+	 * Print the jobs, deadline misses, skipped jobs and worst lateness of
+	 * every thread that is still periodic, the totals of the threads that are
+	 * no longer periodic, and the percentiles of the response times of all
+	 * their jobs.
+	 */
+	public void print() {
+		if (numAdmitted == 0 && numRejected == 0)
+			return;
+
+		System.out.println("EDF: " + numAdmitted + " admitted, "
+				+ numRejected + " rejected, utilization "
+				+ Math.round(utilization * 1000) / 1000.0 + " of "
+				+ maxUtilization);
+
+		if (numAdmitted > periodic.size())
+			System.out.println("  " + (numAdmitted - periodic.size())
+					+ " no longer periodic: " + finishedJobs + " jobs, "
+					+ finishedMisses + " missed, " + finishedSkipped
+					+ " skipped, worst lateness " + finishedWorstLateness);
+
+		long jobs = finishedJobs, misses = finishedMisses;
+		long skipped = finishedSkipped;
+		for (Iterator<ThreadState> i = periodic.iterator(); i.hasNext();) {
+			ThreadState state = i.next();
+			System.out.println("  " + state.thread + ": period "
+					+ state.period + ", budget " + state.budget + ", "
+					+ state.numJobs + " jobs, " + state.numMisses
+					+ " missed, " + state.numSkipped
+					+ " skipped, worst lateness " + state.worstLateness);
+
+			jobs += state.numJobs;
+			misses += state.numMisses;
+			skipped += state.numSkipped;
+		}
+
+		if (numResponses == 0)
+			return;
+
+		System.out.println("  total " + jobs + " jobs, " + misses
+				+ " missed, " + skipped + " skipped; response p50 "
+				+ percentile(50) + ", p90 " + percentile(90) + ", p99 "
+				+ percentile(99) + ", max " + maxResponse);
+	}
+
+	/**
+	 * The deadline of a thread that has none.
+	 */
+	public static final long noDeadline = Long.MAX_VALUE;
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	private void addResponse(long ticks) {
+		ticks = Math.max(ticks, 0);
+
+		responses[bucket(ticks)]++;
+		numResponses++;
+		maxResponse = Math.max(maxResponse, ticks);
+	}
+
+	/**
+	 * Return the response time below which <i>percent</i> percent of the jobs
+	 * finished, rounded up to the end of its histogram bucket.
+	 */
+	private long percentile(int percent) {
+		long rank = (numResponses - 1) * percent / 100;
+
+		int i = 0;
+		for (long count = responses[0]; count <= rank; count += responses[i])
+			i++;
+
+		return Math.min(bucketEnd(i), maxResponse);
+	}
+
+	/**
+	 * Return the histogram bucket of <i>ticks</i>. Times below
+	 * <tt>2 * subBuckets</tt> have a bucket each; above that, every power of
+	 * two is split into <tt>subBuckets</tt> equal buckets.
+	 */
+	private static int bucket(long ticks) {
+		if (ticks < subBuckets)
+			return (int) ticks;
+
+		int exponent = 63 - Long.numberOfLeadingZeros(ticks);
+		int sub = (int) (ticks >>> (exponent - subBits)) & (subBuckets - 1);
+
+		return (exponent - subBits + 1) * subBuckets + sub;
+	}
+
+	/**
+	 * Return the largest time in histogram bucket <i>i</i>.
+	 */
+	private static long bucketEnd(int i) {
+		if (i < subBuckets)
+			return i;
+
+		int shift = i / subBuckets - 1;
+		long start = (long) (subBuckets + i % subBuckets) << shift;
+
+		return start + (1L << shift) - 1;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that keeps its waiting threads in a binary heap
+	 * ordered by effective deadline.
+	 */
+	protected class DeadlineQueue extends ThreadQueue {
+		DeadlineQueue(boolean transferPriority) {
+			this.transferPriority = transferPriority;
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			getThreadState(thread).waitForAccess(this);
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			getThreadState(thread).acquire(this);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState next = pickNextThread();
+			if (next == null) {
+				setOwner(null);
+				return null;
+			}
+
+			remove(next);
+			next.acquire(this);
+
+			return next.thread;
+		}
+
+		/**
+		 * Return the next thread that <tt>nextThread()</tt> would return,
+		 * without modifying the state of this queue.
+		 *
+		 * @return the next thread that <tt>nextThread()</tt> would return.
+		 */
+		protected ThreadState pickNextThread() {
+			if (numWaiting == 0)
+				return null;
+
+			return heap[0];
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			// the heap is only partially ordered, so sort a copy of it
+			ThreadState[] order = Arrays.copyOf(heap, numWaiting);
+			for (int i = 1; i < order.length; i++) {
+				ThreadState state = order[i];
+				int j = i;
+				for (; j > 0 && precedes(state, order[j - 1]); j--)
+					order[j] = order[j - 1];
+				order[j] = state;
+			}
+
+			for (int i = 0; i < order.length; i++)
+				System.out.print(order[i].thread + " ("
+						+ order[i].effectiveDeadline + ") ");
+		}
+
+		/**
+		 * Return the earliest effective deadline of the waiting threads.
+		 */
+		protected long earliestDeadline() {
+			return (numWaiting == 0) ? noDeadline : heap[0].effectiveDeadline;
+		}
+
+		protected void add(ThreadState state) {
+			if (numWaiting == heap.length)
+				heap = Arrays.copyOf(heap, heap.length * 2);
+
+			state.sequence = nextSequence++;
+
+			heap[numWaiting] = state;
+			state.heapIndex = numWaiting++;
+			siftUp(state.heapIndex);
+
+			updateOwner();
+		}
+
+		protected void remove(ThreadState state) {
+			int i = state.heapIndex;
+			ThreadState last = heap[--numWaiting];
+			heap[numWaiting] = null;
+			state.heapIndex = -1;
+
+			if (last != state) {
+				place(last, i);
+				siftUp(i);
+				siftDown(last.heapIndex);
+			}
+
+			updateOwner();
+		}
+
+		/**
+		 * Called when the effective deadline of a waiting thread changes.
+		 * Restore the heap order, and pass the change on to the owner.
+		 */
+		protected void reposition(ThreadState state) {
+			siftUp(state.heapIndex);
+			siftDown(state.heapIndex);
+
+			updateOwner();
+		}
+
+		/**
+		 * Give this queue to a new owner, which inherits the deadlines of the
+		 * waiting threads in place of the old owner.
+		 */
+		protected void setOwner(ThreadState newOwner) {
+			if (!transferPriority || owner == newOwner)
+				return;
+
+			if (owner != null) {
+				owner.owned.remove(this);
+				owner.updateEffectiveDeadline();
+			}
+
+			owner = newOwner;
+
+			if (owner != null) {
+				owner.owned.add(this);
+				owner.updateEffectiveDeadline();
+			}
+		}
+
+		private void updateOwner() {
+			if (transferPriority && owner != null)
+				owner.updateEffectiveDeadline();
+		}
+
+		private void siftUp(int i) {
+			ThreadState state = heap[i];
+
+			while (i > 0) {
+				int parent = (i - 1) / 2;
+				if (!precedes(state, heap[parent]))
+					break;
+
+				place(heap[parent], i);
+				i = parent;
+			}
+
+			place(state, i);
+		}
+
+		private void siftDown(int i) {
+			ThreadState state = heap[i];
+
+			while (true) {
+				int child = 2 * i + 1;
+				if (child >= numWaiting)
+					break;
+
+				if (child + 1 < numWaiting
+						&& precedes(heap[child + 1], heap[child]))
+					child++;
+
+				if (!precedes(heap[child], state))
+					break;
+
+				place(heap[child], i);
+				i = child;
+			}
+
+			place(state, i);
+		}
+
+		private void place(ThreadState state, int i) {
+			heap[i] = state;
+			state.heapIndex = i;
+		}
+
+		private boolean precedes(ThreadState state1, ThreadState state2) {
+			return state1.effectiveDeadline < state2.effectiveDeadline
+					|| (state1.effectiveDeadline == state2.effectiveDeadline
+							&& state1.sequence < state2.sequence);
+		}
+
+		/**
+		 * <tt>true</tt> if the owning thread should inherit the deadlines of
+		 * the waiting threads.
+		 */
+		public boolean transferPriority;
+
+		private ThreadState[] heap = new ThreadState[16];
+
+		private int numWaiting = 0;
+
+		/** Breaks ties between equal deadlines in favour of the earlier waiter. */
+		private long nextSequence = 0;
+
+		/** The thread that has access, if this queue transfers deadlines. */
+		protected ThreadState owner = null;
+	}
+
+	/**
+	 * The scheduling state of a thread under an EDF scheduler: its deadline,
+	 * its effective deadline including inherited ones, its period if it is
+	 * periodic, and the record of its jobs.
+	 *
+	 * @see nachos.threads.KThread#schedulingState
+	 */
+	protected class ThreadState {
+		/**
+		 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+		 * specified thread.
+		 *
+		 * @param thread the thread this state belongs to.
+		 */
+		public ThreadState(KThread thread) {
+			this.thread = thread;
+		}
+
+		/**
+		 * Set the deadline of the associated thread.
+		 *
+		 * @param deadline the new deadline.
+		 */
+		public void setDeadline(long deadline) {
+			this.deadline = deadline;
+
+			updateEffectiveDeadline();
+		}
+
+		/**
+		 * Called when the associated thread begins waiting on
+		 * <i>waitQueue</i>.
+		 *
+		 * @param waitQueue the queue that the associated thread is now waiting
+		 * on.
+		 *
+		 * @see nachos.threads.ThreadQueue#waitForAccess
+		 */
+		public void waitForAccess(DeadlineQueue waitQueue) {
+			Lib.assertTrue(this.waitQueue == null);
+
+			this.waitQueue = waitQueue;
+			waitQueue.add(this);
+		}
+
+		/**
+		 * Called when the associated thread has acquired access to whatever is
+		 * guarded by <i>waitQueue</i>.
+		 *
+		 * @see nachos.threads.ThreadQueue#acquire
+		 * @see nachos.threads.ThreadQueue#nextThread
+		 */
+		public void acquire(DeadlineQueue waitQueue) {
+			if (this.waitQueue == waitQueue)
+				this.waitQueue = null;
+
+			waitQueue.setOwner(this);
+		}
+
+		/**
+		 * Recompute the effective deadline of the associated thread from its
+		 * own deadline and the queues it owns, and pass any change on to the
+		 * queue it is waiting on.
+		 */
+		protected void updateEffectiveDeadline() {
+			long earliest = deadline;
+			for (Iterator<DeadlineQueue> i = owned.iterator(); i.hasNext();)
+				earliest = Math.min(earliest, i.next().earliestDeadline());
+
+			if (earliest == effectiveDeadline)
+				return;
+
+			effectiveDeadline = earliest;
+
+			if (waitQueue != null)
+				waitQueue.reposition(this);
+		}
+
+		/**
+		 * Record the end of the current job at <i>time</i>.
+		 */
+		private void finishJob(long time) {
+			numJobs++;
+			addResponse(time - release);
+
+			if (time > deadline) {
+				numMisses++;
+				worstLateness = Math.max(worstLateness, time - deadline);
+			}
+		}
+
+		private double utilization() {
+			return (double) budget / period;
+		}
+
+		/** The thread with which this object is associated. */
+		protected KThread thread;
+
+		/** The deadline of the associated thread. */
+		protected long deadline = noDeadline;
+
+		/** The earliest of its own deadline and the deadlines it inherits. */
+		protected long effectiveDeadline = noDeadline;
+
+		/** The queue the associated thread is waiting on, if any. */
+		protected DeadlineQueue waitQueue = null;
+
+		/** The queues that pass their deadlines on to the associated thread. */
+		protected LinkedList<DeadlineQueue> owned = new LinkedList<DeadlineQueue>();
+
+		/** <tt>true</tt> if the associated thread is periodic. */
+		protected boolean isPeriodic = false;
+
+		/** The period and budget the associated thread was last admitted with. */
+		protected long period, budget;
+
+		/** The time the current job was released. */
+		protected long release;
+
+		private int numJobs = 0, numMisses = 0;
+
+		private long worstLateness = 0;
+
+		/** The jobs dropped because an earlier job overran their periods. */
+		private long numSkipped = 0;
+
+		/** The index of this state in <tt>periodic</tt>, or -1. */
+		private int periodicIndex = -1;
+
+		private long sequence;
+
+		private int heapIndex = -1;
+	}
+
+	private double maxUtilization;
+
+	/** The sum of <tt>budget / period</tt> over the periodic threads. */
+	private double utilization = 0;
+
+	private int numAdmitted = 0, numRejected = 0;
+
+	/** The threads that are periodic now, in no particular order. */
+	private ArrayList<ThreadState> periodic = new ArrayList<ThreadState>();
+
+	/** The records of the threads that are no longer periodic, summed. */
+	private long finishedJobs = 0, finishedMisses = 0, finishedSkipped = 0;
+
+	private long finishedWorstLateness = 0;
+
+	private static final int subBits = 4;
+
+	private static final int subBuckets = 1 << subBits;
+
+	/**
+	 * A histogram of the response times of all jobs, from release to
+	 * completion, with enough buckets for any non-negative <tt>long</tt>.
+	 */
+	private long[] responses = new long[(64 - subBits) * subBuckets];
+
+	private long numResponses = 0, maxResponse = 0;
+}
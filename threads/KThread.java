@@ -67,6 +67,9 @@ public class KThread {
 			name = "main";
 			restoreState();
 
+			if (trace != null)
+				trace.dispatch(this);
+
 			createIdleThread();
 		}
 
@@ -213,6 +216,8 @@ public class KThread {
 
 		currentThread.status = statusFinished;
 
+		ThreadedKernel.scheduler.finish(currentThread);
+
 		currentThread.unjoin();
 
 		sleep();
@@ -267,6 +272,9 @@ public class KThread {
 		if (currentThread.status != statusFinished)
 			currentThread.status = statusBlocked;
 
+		if (trace != null && currentThread != idleThread)
+			trace.sleep(currentThread, currentThread.status == statusFinished);
+
 		runNextThread();
 	}
 
@@ -281,8 +289,12 @@ public class KThread {
 		Lib.assertTrue(status != statusReady);
 
 		status = statusReady;
-		if (this != idleThread)
+		if (this != idleThread) {
+			if (trace != null)
+				trace.ready(this);
+
 			readyQueue.waitForAccess(this);
+		}
 
 		Machine.autoGrader().readyThread(this);
 	}
@@ -332,7 +344,7 @@ public class KThread {
 		idleThread = new KThread(new Runnable() {
 			public void run() {
 				while (true)
-					yield();
+					idle();
 			}
 		});
 		idleThread.setName("idle");
@@ -342,6 +354,28 @@ public class KThread {
 		idleThread.fork();
 	}
 
+	/**
+	 * Run one iteration of the idle thread. If another thread is ready, yield
+	 * to it. Otherwise nothing can happen until the next interrupt, so skip
+	 * straight to it instead of yielding once per kernel tick.
+	 */
+	private static void idle() {
+		Lib.assertTrue(currentThread == idleThread);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread nextThread = readyQueue.nextThread();
+		if (nextThread != null) {
+			currentThread.ready();
+			nextThread.run();
+		}
+		else {
+			Machine.interrupt().fastForward();
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
 	/**
 	 * Determine the next thread to run, then dispatch the CPU to the thread
 	 * using <tt>run()</tt>.
@@ -378,6 +412,9 @@ public class KThread {
 
 		Machine.yield();
 
+		if (trace != null && this != idleThread)
+			trace.dispatch(this);
+
 		currentThread.saveState();
 
 		Lib.debug(dbgThread, "Switching from: " + currentThread.toString()
@@ -482,6 +519,20 @@ public class KThread {
 	 */
 	public Object schedulingState = null;
 
+	/**
+	 * The scheduler trace, or <tt>null</tt> if scheduling is not being traced.
+	 */
+	static SchedulerTrace trace = null;
+
+	/** This thread's histograms in <tt>trace</tt>. */
+	SchedulerTrace.Record traceRecord = null;
+
+	/** This thread's entry in the alarm's timing wheel. */
+	Alarm.Sleeper sleeper = null;
+
+	/** What this thread has yet to move through a channel. */
+	Channel.Transfer transfer = null;
+
 	private static final int statusNew = 0;
 
 	private static final int statusReady = 1;
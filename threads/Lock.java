@@ -2,6 +2,11 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
 /**
  * A <tt>Lock</tt> is a synchronization primitive that has two states,
  * <i>busy</i> and <i>free</i>. There are only two operations allowed on a lock:
@@ -17,48 +22,115 @@ import nachos.machine.*;
  * Also, only the thread that acquired a lock may release it. As with
  * semaphores, the API does not allow you to read the lock state (because the
  * value could change immediately after you read it).
+ * 
+ * <p>
+ * Every lock counts its acquires, the acquires that had to wait, and the
+ * ticks it was held for in total. If <tt>Lock.printStats</tt> is
+ * <tt>true</tt>, these counts are printed when Nachos halts, the most
+ * contended first. The counts are kept per name rather than per lock, so that
+ * the statistics do not keep locks alive: locks with the same name add to the
+ * same counts, and locks created without a name all add to one entry.
  */
 public class Lock {
 	/**
 	 * Allocate a new lock. The lock will initially be <i>free</i>.
 	 */
 	public Lock() {
+		this(unnamed);
+	}
+
+	/**
+	 * Allocate a new lock with a name, which identifies it in the lock
+	 * statistics. Locks with the same name share their statistics. The lock
+	 * will initially be <i>free</i>.
+	 * 
+	 * @param name the name of the lock.
+	 */
+	public Lock(String name) {
+		if (statsByName == null) {
+			stats = new Stats(name);
+			return;
+		}
+
+		stats = statsByName.get(name);
+		if (stats == null) {
+			stats = new Stats(name);
+			statsByName.put(name, stats);
+		}
 	}
 
 	/**
 	 * Atomically acquire this lock. The current thread must not already hold
 	 * this lock.
+	 * 
+	 * <p>
+	 * A free lock is taken without disabling interrupts or touching the wait
+	 * queue. Kernel code can only be preempted when interrupts are enabled or
+	 * restored, so testing and setting <tt>lockHolder</tt> is already atomic.
+	 * The wait queue is only told who holds the lock once another thread has
+	 * to wait for it, which is when a scheduler needs to know who to donate
+	 * priority to.
 	 */
 	public void acquire() {
-		Lib.assertTrue(!isHeldByCurrentThread());
-
-		boolean intStatus = Machine.interrupt().disable();
 		KThread thread = KThread.currentThread();
+		Lib.assertTrue(lockHolder != thread);
 
-		if (lockHolder != null) {
-			waitQueue.waitForAccess(thread);
-			KThread.sleep();
-		}
-		else {
-			waitQueue.acquire(thread);
+		stats.numAcquires++;
+
+		if (lockHolder == null) {
 			lockHolder = thread;
+			acquireTime = Machine.timer().getTime();
+			return;
 		}
 
+		boolean intStatus = Machine.interrupt().disable();
+
+		stats.numContended++;
+
+		if (queueHolder != lockHolder) {
+			waitQueue.acquire(lockHolder);
+			queueHolder = lockHolder;
+		}
+
+		numWaiting++;
+		waitQueue.waitForAccess(thread);
+		KThread.sleep();
+
 		Lib.assertTrue(lockHolder == thread);
 
 		Machine.interrupt().restore(intStatus);
 	}
 
 	/**
-	 * Atomically release this lock, allowing other threads to acquire it.
+	 * Atomically release this lock, allowing other threads to acquire it. If
+	 * no thread is waiting, the wait queue is not touched.
 	 */
 	public void release() {
 		Lib.assertTrue(isHeldByCurrentThread());
 
+		long time = Machine.timer().getTime();
+		stats.holdTicks += time - acquireTime;
+
+		if (numWaiting == 0 && queueHolder == null) {
+			lockHolder = null;
+			return;
+		}
+
 		boolean intStatus = Machine.interrupt().disable();
 
-		if ((lockHolder = waitQueue.nextThread()) != null)
-			lockHolder.ready();
+		// the queue still has this thread as its holder, so clear that
+		if (numWaiting == 0) {
+			waitQueue.nextThread();
+			lockHolder = queueHolder = null;
+
+			Machine.interrupt().restore(intStatus);
+			return;
+		}
+
+		numWaiting--;
+		lockHolder = queueHolder = waitQueue.nextThread();
+		acquireTime = time;
+		lockHolder.ready();
 
 		Machine.interrupt().restore(intStatus);
 	}
@@ -72,8 +144,72 @@ public class Lock {
 		return (lockHolder == KThread.currentThread());
 	}
 
+	/**
+	 * Keep the statistics of every lock name from now on, and print them when
+	 * Nachos halts.
+	 */
+	static void printStatsAtHalt() {
+		statsByName = new HashMap<String, Stats>();
+
+		Machine.addHaltHandler(new Runnable() {
+			public void run() {
+				printStats();
+			}
+		});
+	}
+
+	private static void printStats() {
+		ArrayList<Stats> all = new ArrayList<Stats>(statsByName.values());
+
+		Collections.sort(all, new Comparator<Stats>() {
+			public int compare(Stats stats1, Stats stats2) {
+				if (stats1.numContended != stats2.numContended)
+					return (stats1.numContended > stats2.numContended) ? -1 : 1;
+
+				return (stats1.numAcquires > stats2.numAcquires) ? -1
+						: (stats1.numAcquires < stats2.numAcquires) ? 1 : 0;
+			}
+		});
+
+		for (Stats stats : all) {
+			if (stats.numAcquires != 0)
+				System.out.println(stats.name + ": " + stats.numAcquires
+						+ " acquires, " + stats.numContended + " contended, "
+						+ stats.holdTicks + " ticks held");
+		}
+	}
+
+	/**
+	 * The counts shared by every lock with the same name.
+	 */
+	private static class Stats {
+		Stats(String name) {
+			this.name = name;
+		}
+
+		private String name;
+
+		private long numAcquires = 0, numContended = 0, holdTicks = 0;
+	}
+
+	private Stats stats;
+
 	private KThread lockHolder = null;
 
+	/** The thread the wait queue was last told holds this lock. */
+	private KThread queueHolder = null;
+
+	/** The number of threads in <tt>waitQueue</tt>. */
+	private int numWaiting = 0;
+
 	private ThreadQueue waitQueue = ThreadedKernel.scheduler
 			.newThreadQueue(true);
+
+	/** The time the current holder acquired this lock. */
+	private long acquireTime;
+
+	private static final String unnamed = "unnamed locks";
+
+	/** The counts of each lock name, if they are printed at halt. */
+	private static HashMap<String, Stats> statsByName = null;
 }
@@ -2,29 +2,30 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
-
 /**
  * A scheduler that chooses threads using a lottery.
- * 
+ *
  * <p>
  * A lottery scheduler associates a number of tickets with each thread. When a
  * thread needs to be dequeued, a random lottery is held, among all the tickets
  * of all the threads waiting to be dequeued. The thread that holds the winning
  * ticket is chosen.
- * 
+ *
  * <p>
  * Note that a lottery scheduler must be able to handle a lot of tickets
  * (sometimes billions), so it is not acceptable to maintain state for every
  * ticket.
- * 
+ *
  * <p>
  * A lottery scheduler must partially solve the priority inversion problem; in
  * particular, tickets must be transferred through locks, and through joins.
  * Unlike a priority scheduler, these tickets add (as opposed to just taking the
  * maximum).
+ *
+ * <p>
+ * Each queue keeps the effective tickets of its waiting threads in a Fenwick
+ * tree, so holding a lottery and changing a thread's tickets both take
+ * logarithmic time in the number of waiting threads.
  */
 public class LotteryScheduler extends PriorityScheduler {
 	/**
@@ -35,13 +36,416 @@ public class LotteryScheduler extends PriorityScheduler {
 
 	/**
 	 * Allocate a new lottery thread queue.
-	 * 
+	 *
 	 * @param transferPriority <tt>true</tt> if this queue should transfer
 	 * tickets from waiting threads to the owning thread.
 	 * @return a new lottery thread queue.
 	 */
 	public ThreadQueue newThreadQueue(boolean transferPriority) {
-		// implement me
-		return null;
+		return new LotteryQueue(transferPriority);
+	}
+
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getLotteryState(thread).getTickets();
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return (int) Math.min(getLotteryState(thread).getEffectiveTickets(),
+				Integer.MAX_VALUE);
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= priorityMinimum
+				&& priority <= priorityMaximum);
+
+		getLotteryState(thread).setTickets(priority);
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMaximum)
+			ret = false;
+		else
+			setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMinimum)
+			ret = false;
+		else
+			setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	/**
+	 * The default number of tickets for a new thread.
+	 */
+	public static final int priorityDefault = 1;
+
+	/**
+	 * The minimum number of tickets that a thread can have.
+	 */
+	public static final int priorityMinimum = 1;
+
+	/**
+	 * The maximum number of tickets that a thread can have.
+	 */
+	public static final int priorityMaximum = Integer.MAX_VALUE;
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected LotteryState getLotteryState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new LotteryState(thread);
+
+		return (LotteryState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+	 * Each waiting thread occupies a slot, and a Fenwick tree over the slots
+	 * holds the effective tickets of the thread in each slot.
+	 */
+	protected class LotteryQueue extends ThreadQueue {
+		LotteryQueue(boolean transferPriority) {
+			this.transferPriority = transferPriority;
+
+			linkFreeSlots(0);
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			getLotteryState(thread).waitForAccess(this);
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			getLotteryState(thread).acquire(this);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			LotteryState next = pickNextThread();
+			if (next == null) {
+				setOwner(null);
+				return null;
+			}
+
+			remove(next);
+			next.acquire(this);
+
+			return next.thread;
+		}
+
+		/**
+		 * Hold a lottery among the waiting threads, and return the winner.
+		 *
+		 * @return the winning thread, or <tt>null</tt> if no thread is
+		 * waiting.
+		 */
+		protected LotteryState pickNextThread() {
+			if (numWaiting == 0)
+				return null;
+
+			long ticket = Math.min((long) (Lib.random() * totalTickets),
+					totalTickets - 1);
+
+			// find the first slot whose prefix sum exceeds the ticket
+			int index = 0;
+			for (int bit = slots.length; bit > 0; bit >>= 1) {
+				if (index + bit <= slots.length && tree[index + bit] <= ticket) {
+					index += bit;
+					ticket -= tree[index];
+				}
+			}
+
+			return slots[index];
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 0; i < slots.length; i++) {
+				if (slots[i] != null)
+					System.out.print(slots[i].thread + " ("
+							+ slots[i].effectiveTickets + ") ");
+			}
+		}
+
+		/**
+		 * Put a thread in a free slot, growing the tree if there is none.
+		 */
+		protected void add(LotteryState state) {
+			if (freeSlot < 0)
+				grow();
+
+			int slot = freeSlot;
+			freeSlot = nextFree[slot];
+
+			slots[slot] = state;
+			state.slot = slot;
+			numWaiting++;
+
+			adjust(slot, state.effectiveTickets);
+		}
+
+		/**
+		 * Take a thread out of its slot.
+		 */
+		protected void remove(LotteryState state) {
+			int slot = state.slot;
+
+			adjust(slot, -state.effectiveTickets);
+
+			slots[slot] = null;
+			state.slot = -1;
+			numWaiting--;
+
+			nextFree[slot] = freeSlot;
+			freeSlot = slot;
+		}
+
+		/**
+		 * Add <i>delta</i> to the tickets held in <i>slot</i>, and pass the
+		 * change on to the owner.
+		 */
+		protected void adjust(int slot, long delta) {
+			for (int i = slot + 1; i <= slots.length; i += i & -i)
+				tree[i] += delta;
+
+			totalTickets += delta;
+
+			if (transferPriority && owner != null)
+				owner.changeDonation(delta);
+		}
+
+		/**
+		 * Give this queue to a new owner, moving the tickets of the waiting
+		 * threads from the old owner to the new one.
+		 */
+		protected void setOwner(LotteryState newOwner) {
+			if (!transferPriority || owner == newOwner)
+				return;
+
+			if (owner != null)
+				owner.changeDonation(-totalTickets);
+
+			owner = newOwner;
+
+			if (owner != null)
+				owner.changeDonation(totalTickets);
+		}
+
+		/**
+		 * Double the number of slots, and rebuild the tree over them.
+		 */
+		private void grow() {
+			int capacity = slots.length * 2;
+
+			LotteryState[] newSlots = new LotteryState[capacity];
+			System.arraycopy(slots, 0, newSlots, 0, slots.length);
+
+			int[] newNextFree = new int[capacity];
+			System.arraycopy(nextFree, 0, newNextFree, 0, nextFree.length);
+
+			long[] newTree = new long[capacity + 1];
+			for (int i = 1; i <= capacity; i++) {
+				if (newSlots[i - 1] != null)
+					newTree[i] += newSlots[i - 1].effectiveTickets;
+
+				int parent = i + (i & -i);
+				if (parent <= capacity)
+					newTree[parent] += newTree[i];
+			}
+
+			int oldCapacity = slots.length;
+
+			slots = newSlots;
+			nextFree = newNextFree;
+			tree = newTree;
+
+			linkFreeSlots(oldCapacity);
+		}
+
+		/**
+		 * Push the slots from <i>first</i> to the end onto the free stack, which
+		 * must be empty.
+		 */
+		private void linkFreeSlots(int first) {
+			for (int i = first; i < slots.length; i++)
+				nextFree[i] = (i + 1 < slots.length) ? i + 1 : -1;
+
+			freeSlot = first;
+		}
+
+		/**
+		 * <tt>true</tt> if this queue should transfer tickets from waiting
+		 * threads to the owning thread.
+		 */
+		public boolean transferPriority;
+
+		/** The thread in each slot, or <tt>null</tt> for a free slot. */
+		private LotteryState[] slots = new LotteryState[initialCapacity];
+
+		/**
+		 * The Fenwick tree over <tt>slots</tt>, indexed from 1; entry <i>i</i>
+		 * holds the tickets of the <tt>i & -i</tt> slots ending at slot
+		 * <i>i</i> - 1.
+		 */
+		private long[] tree = new long[initialCapacity + 1];
+
+		/** The free slots, as a stack linked through <tt>nextFree</tt>. */
+		private int[] nextFree = new int[initialCapacity];
+
+		private int freeSlot;
+
+		private int numWaiting = 0;
+
+		/** The sum of the effective tickets of the waiting threads. */
+		private long totalTickets = 0;
+
+		/** The thread that has access, if this queue transfers tickets. */
+		protected LotteryState owner = null;
 	}
+
+	/**
+	 * The scheduling state of a thread under a lottery scheduler: its tickets,
+	 * its effective tickets including donations, the queue it is waiting on,
+	 * and its slot in that queue.
+	 *
+	 * @see nachos.threads.KThread#schedulingState
+	 */
+	protected class LotteryState {
+		/**
+		 * Allocate a new <tt>LotteryState</tt> object and associate it with
+		 * the specified thread.
+		 *
+		 * @param thread the thread this state belongs to.
+		 */
+		public LotteryState(KThread thread) {
+			this.thread = thread;
+
+			tickets = priorityDefault;
+			effectiveTickets = priorityDefault;
+		}
+
+		/**
+		 * Return the tickets of the associated thread.
+		 *
+		 * @return the tickets of the associated thread.
+		 */
+		public int getTickets() {
+			return tickets;
+		}
+
+		/**
+		 * Return the tickets of the associated thread plus the tickets donated
+		 * to it.
+		 *
+		 * @return the effective tickets of the associated thread.
+		 */
+		public long getEffectiveTickets() {
+			return effectiveTickets;
+		}
+
+		/**
+		 * Set the tickets of the associated thread to the specified value.
+		 *
+		 * @param tickets the new number of tickets.
+		 */
+		public void setTickets(int tickets) {
+			long delta = (long) tickets - this.tickets;
+			this.tickets = tickets;
+
+			changeDonation(delta);
+		}
+
+		/**
+		 * Called when the associated thread begins waiting on
+		 * <i>waitQueue</i>.
+		 *
+		 * @param waitQueue the queue that the associated thread is now waiting
+		 * on.
+		 *
+		 * @see nachos.threads.ThreadQueue#waitForAccess
+		 */
+		public void waitForAccess(LotteryQueue waitQueue) {
+			Lib.assertTrue(this.waitQueue == null);
+
+			this.waitQueue = waitQueue;
+			waitQueue.add(this);
+		}
+
+		/**
+		 * Called when the associated thread has acquired access to whatever is
+		 * guarded by <i>waitQueue</i>.
+		 *
+		 * @see nachos.threads.ThreadQueue#acquire
+		 * @see nachos.threads.ThreadQueue#nextThread
+		 */
+		public void acquire(LotteryQueue waitQueue) {
+			if (this.waitQueue == waitQueue)
+				this.waitQueue = null;
+
+			waitQueue.setOwner(this);
+		}
+
+		/**
+		 * Add <i>delta</i> to the effective tickets of the associated thread,
+		 * and to every queue and owner it is donating to.
+		 */
+		protected void changeDonation(long delta) {
+			if (delta == 0)
+				return;
+
+			effectiveTickets += delta;
+
+			if (waitQueue != null)
+				waitQueue.adjust(slot, delta);
+		}
+
+		/** The thread with which this object is associated. */
+		protected KThread thread;
+
+		/** The tickets of the associated thread. */
+		protected int tickets;
+
+		/** The tickets of the associated thread plus its donations. */
+		protected long effectiveTickets;
+
+		/** The queue the associated thread is waiting on, if any. */
+		protected LotteryQueue waitQueue = null;
+
+		/** The slot of the associated thread in <tt>waitQueue</tt>. */
+		protected int slot = -1;
+	}
+
+	private static final int initialCapacity = 16;
 }
@@ -0,0 +1,377 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.Iterator;
+
+/**
+ * A multi-level feedback queue scheduler. Every queue has one FIFO list per
+ * level, and always gives access to the longest-waiting thread of the highest
+ * level. A new thread starts at the highest level.
+ *
+ * <p>
+ * A thread that the timer preempts has used a full quantum. A thread at level
+ * <i>i</i> (with level 0 the highest) that uses up <tt>2<sup>i</sup></tt>
+ * quanta is demoted one level, so CPU-bound threads sink. A thread that blocks
+ * on the alarm or on console or network I/O, as reported by
+ * <tt>blockForIO()</tt>, is promoted one level when it is woken, so
+ * interactive threads stay near the top. Waiting for a lock, a join or
+ * another thread does not promote a thread, so contention cannot be used to
+ * climb levels.
+ * To keep the lowest levels from starving, every thread is returned to the
+ * highest level every <tt>MLFQScheduler.boostInterval</tt> ticks.
+ *
+ * <p>
+ * The number of levels is <tt>MLFQScheduler.levels</tt>. A thread's priority
+ * is <tt>levels - 1 - level</tt>, so that, as with the priority scheduler, a
+ * higher priority runs first.
+ */
+public class MLFQScheduler extends Scheduler {
+	/**
+	 * Allocate a new MLFQ scheduler.
+	 */
+	public MLFQScheduler() {
+		numLevels = Config.getInteger("MLFQScheduler.levels", 4);
+		boostInterval = Config.getInteger("MLFQScheduler.boostInterval",
+				50 * Stats.TimerTicks);
+		Lib.assertTrue(numLevels > 0 && numLevels <= 31 && boostInterval > 0);
+
+		nextBoost = boostInterval;
+	}
+
+	/**
+	 * Allocate a new multi-level thread queue.
+	 *
+	 * @param transferPriority ignored. Feedback does not transfer priority.
+	 * @return a new multi-level thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new MultiLevelQueue();
+	}
+
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return numLevels - 1 - getThreadState(thread).level;
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		return getPriority(thread);
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= 0 && priority < numLevels);
+
+		getThreadState(thread).setLevel(numLevels - 1 - priority);
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == numLevels - 1)
+			ret = false;
+		else
+			setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == 0)
+			ret = false;
+		else
+			setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	/**
+	 * Charge the preempted thread for a quantum, and demote it once it has
+	 * used up its allotment at its level.
+	 */
+	public void preempt(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		ThreadState state = getThreadState(thread);
+		state.checkBoost();
+
+		if (++state.quantaUsed >= (1 << state.level)
+				&& state.level < numLevels - 1)
+			state.setLevel(state.level + 1);
+	}
+
+	/**
+	 * Promote the thread one level when it is next woken.
+	 */
+	public void blockForIO(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		getThreadState(thread).blockedForIO = true;
+	}
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * Start a new boost period if the current one is over. Threads notice the
+	 * new period, and return to the highest level, the next time they are
+	 * looked at.
+	 */
+	private void checkBoost() {
+		long time = Machine.timer().getTime();
+
+		if (time >= nextBoost) {
+			boostPeriod++;
+			nextBoost = time + boostInterval;
+		}
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> with one FIFO list per level.
+	 */
+	protected class MultiLevelQueue extends ThreadQueue {
+		MultiLevelQueue() {
+			lists = new ArrayList<LinkedList<ThreadState>>(numLevels);
+			for (int i = 0; i < numLevels; i++)
+				lists.add(new LinkedList<ThreadState>());
+		}
+
+		/**
+		 * Add a thread to the end of the list for its level. A thread woken
+		 * at the end of an alarm or I/O wait is promoted first.
+		 *
+		 * @param thread the thread to append to the queue.
+		 */
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			checkBoost();
+
+			ThreadState state = getThreadState(thread);
+			state.checkBoost();
+
+			if (state.blockedForIO && thread != KThread.currentThread()) {
+				state.blockedForIO = false;
+				if (state.level > 0)
+					state.setLevel(state.level - 1);
+			}
+
+			Lib.assertTrue(state.waitQueue == null);
+			state.waitQueue = this;
+
+			add(state);
+		}
+
+		/**
+		 * Remove the first thread of the highest non-empty level.
+		 *
+		 * @return the first thread of the highest level, or <tt>null</tt> if
+		 * the queue is empty.
+		 */
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			checkBoost();
+
+			ThreadState state = pickNextThread();
+			if (state == null)
+				return null;
+
+			remove(state);
+			state.waitQueue = null;
+
+			return state.thread;
+		}
+
+		/**
+		 * The specified thread has received access, without using
+		 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Nothing needs to be
+		 * done.
+		 */
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+		}
+
+		/**
+		 * Return the next thread that <tt>nextThread()</tt> would return,
+		 * without modifying the state of this queue. A pending boost does not
+		 * change the answer, since it keeps the threads in order of level.
+		 *
+		 * @return the next thread that <tt>nextThread()</tt> would return.
+		 */
+		protected ThreadState pickNextThread() {
+			if (nonEmpty == 0)
+				return null;
+
+			int level = Integer.numberOfTrailingZeros(nonEmpty);
+			return lists.get(level).getFirst();
+		}
+
+		/**
+		 * Print out the contents of the queue.
+		 */
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int level = 0; level < numLevels; level++) {
+				for (Iterator<ThreadState> i = lists.get(level).iterator(); i
+						.hasNext();)
+					System.out.print(i.next().thread + " (" + level + ") ");
+			}
+		}
+
+		private void add(ThreadState state) {
+			lists.get(state.level).add(state);
+			nonEmpty |= 1 << state.level;
+		}
+
+		private void remove(ThreadState state) {
+			lists.get(state.level).remove(state);
+			if (lists.get(state.level).isEmpty())
+				nonEmpty &= ~(1 << state.level);
+		}
+
+		/**
+		 * Start a new boost period if the current one is over, and if this
+		 * queue has not yet seen the current one, move every waiting thread to
+		 * the highest level, in order of level and then of arrival.
+		 */
+		private void checkBoost() {
+			MLFQScheduler.this.checkBoost();
+
+			if (period == boostPeriod)
+				return;
+
+			period = boostPeriod;
+
+			for (int level = 0; level < numLevels; level++) {
+				for (Iterator<ThreadState> i = lists.get(level).iterator(); i
+						.hasNext();) {
+					ThreadState state = i.next();
+					state.level = 0;
+					state.quantaUsed = 0;
+					state.period = boostPeriod;
+				}
+
+				if (level > 0) {
+					lists.get(0).addAll(lists.get(level));
+					lists.get(level).clear();
+				}
+			}
+
+			nonEmpty = lists.get(0).isEmpty() ? 0 : 1;
+		}
+
+		/** The waiting threads at each level, with level 0 the highest. */
+		private ArrayList<LinkedList<ThreadState>> lists;
+
+		/** Bit <i>i</i> is set if and only if level <i>i</i> is not empty. */
+		private int nonEmpty = 0;
+
+		/** The boost period this queue last moved its threads up for. */
+		private int period = 0;
+	}
+
+	/**
+	 * The scheduling state of a thread: its level, the quanta it has used at
+	 * that level, and the queue it is waiting on, if any.
+	 *
+	 * @see nachos.threads.KThread#schedulingState
+	 */
+	protected class ThreadState {
+		/**
+		 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+		 * specified thread.
+		 *
+		 * @param thread the thread this state belongs to.
+		 */
+		public ThreadState(KThread thread) {
+			this.thread = thread;
+
+			period = boostPeriod;
+		}
+
+		/**
+		 * Move the associated thread to the specified level, with a fresh
+		 * allotment.
+		 *
+		 * @param level the new level.
+		 */
+		public void setLevel(int level) {
+			if (waitQueue != null)
+				waitQueue.remove(this);
+
+			this.level = level;
+			quantaUsed = 0;
+
+			if (waitQueue != null)
+				waitQueue.add(this);
+		}
+
+		/**
+		 * Return to the highest level if a boost has happened since this
+		 * thread was last looked at.
+		 */
+		private void checkBoost() {
+			MLFQScheduler.this.checkBoost();
+
+			if (period != boostPeriod) {
+				period = boostPeriod;
+				setLevel(0);
+			}
+		}
+
+		/** The thread with which this object is associated. */
+		protected KThread thread;
+
+		/** The level of the associated thread, with 0 the highest. */
+		protected int level = 0;
+
+		/** The quanta the associated thread has used at its level. */
+		protected int quantaUsed = 0;
+
+		/** The queue the associated thread is waiting on, if any. */
+		protected MultiLevelQueue waitQueue = null;
+
+		/** Set while the associated thread waits for the alarm or I/O. */
+		protected boolean blockedForIO = false;
+
+		private int period;
+	}
+
+	private int numLevels;
+
+	private long boostInterval;
+
+	/** The time at which the current boost period ends. */
+	private long nextBoost;
+
+	/** The number of boost periods that have ended. */
+	private int boostPeriod = 0;
+}
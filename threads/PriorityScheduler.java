@@ -2,10 +2,6 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
-
 /**
  * A scheduler that chooses threads based on their priorities.
  * 
@@ -25,6 +21,12 @@ import java.util.Iterator;
  * <p>
  * A priority scheduler must partially solve the priority inversion problem; in
  * particular, priority must be donated through locks, and through joins.
+ * 
+ * <p>
+ * Each queue keeps one FIFO list per priority level and a bitmap of the
+ * levels that are not empty, so the next thread is found in constant time.
+ * Each thread caches its effective priority, and a change is pushed along the
+ * chain of queues and owners only as far as it actually changes something.
  */
 public class PriorityScheduler extends Scheduler {
 	/**
@@ -145,8 +147,17 @@ public class PriorityScheduler extends Scheduler {
 
 		public KThread nextThread() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me
-			return null;
+
+			ThreadState next = pickNextThread();
+			if (next == null) {
+				setOwner(null);
+				return null;
+			}
+
+			remove(next);
+			next.acquire(this);
+
+			return next.thread;
 		}
 
 		/**
@@ -156,13 +167,105 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the next thread that <tt>nextThread()</tt> would return.
 		 */
 		protected ThreadState pickNextThread() {
-			// implement me
-			return null;
+			int level = topLevel();
+			if (level < 0)
+				return null;
+
+			return head[level];
 		}
 
 		public void print() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me (if you want)
+
+			for (int level = priorityMaximum; level >= priorityMinimum; level--) {
+				for (ThreadState state = head[level]; state != null; state = state.next)
+					System.out.print(state.thread + " (" + level + ") ");
+			}
+		}
+
+		/**
+		 * Return the highest effective priority of any waiting thread, or -1 if
+		 * no thread is waiting.
+		 */
+		protected int topLevel() {
+			return 31 - Integer.numberOfLeadingZeros(nonEmpty);
+		}
+
+		/**
+		 * Append a thread to the list for its effective priority.
+		 */
+		protected void add(ThreadState state) {
+			int level = state.effectivePriority;
+
+			state.prev = tail[level];
+			state.next = null;
+
+			if (tail[level] == null)
+				head[level] = state;
+			else
+				tail[level].next = state;
+			tail[level] = state;
+
+			nonEmpty |= 1 << level;
+		}
+
+		/**
+		 * Unlink a thread from the list for its effective priority.
+		 */
+		protected void remove(ThreadState state) {
+			int level = state.effectivePriority;
+
+			if (state.prev == null)
+				head[level] = state.next;
+			else
+				state.prev.next = state.next;
+
+			if (state.next == null)
+				tail[level] = state.prev;
+			else
+				state.next.prev = state.prev;
+
+			state.prev = state.next = null;
+
+			if (head[level] == null)
+				nonEmpty &= ~(1 << level);
+		}
+
+		/**
+		 * Give this queue to a new owner, taking the donation of the waiting
+		 * threads away from the old one.
+		 */
+		protected void setOwner(ThreadState newOwner) {
+			if (!transferPriority)
+				return;
+
+			if (owner != newOwner) {
+				if (owner != null)
+					owner.removeDonation(donation);
+
+				owner = newOwner;
+				donation = -1;
+			}
+
+			updateDonation();
+		}
+
+		/**
+		 * Called whenever the highest effective priority of the waiting threads
+		 * might have changed. If it has, pass the change on to the owner.
+		 */
+		protected void updateDonation() {
+			if (!transferPriority || owner == null)
+				return;
+
+			int level = topLevel();
+			if (level == donation)
+				return;
+
+			int oldDonation = donation;
+			donation = level;
+
+			owner.changeDonation(oldDonation, level);
 		}
 
 		/**
@@ -170,6 +273,25 @@ public class PriorityScheduler extends Scheduler {
 		 * threads to the owning thread.
 		 */
 		public boolean transferPriority;
+
+		/**
+		 * The first and last waiting thread at each priority level, linked
+		 * through <tt>ThreadState.next</tt> and <tt>ThreadState.prev</tt>.
+		 */
+		private ThreadState[] head = new ThreadState[priorityMaximum + 1];
+
+		private ThreadState[] tail = new ThreadState[priorityMaximum + 1];
+
+		/** Bit <i>i</i> is set if and only if level <i>i</i> is not empty. */
+		private int nonEmpty = 0;
+
+		/** The thread that has access, if this queue transfers priority. */
+		protected ThreadState owner = null;
+
+		/**
+		 * The priority this queue currently donates to <tt>owner</tt>, or -1.
+		 */
+		protected int donation = -1;
 	}
 
 	/**
@@ -207,8 +329,7 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the effective priority of the associated thread.
 		 */
 		public int getEffectivePriority() {
-			// implement me
-			return priority;
+			return effectivePriority;
 		}
 
 		/**
@@ -222,7 +343,7 @@ public class PriorityScheduler extends Scheduler {
 
 			this.priority = priority;
 
-			// implement me
+			updateEffectivePriority();
 		}
 
 		/**
@@ -238,7 +359,11 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#waitForAccess
 		 */
 		public void waitForAccess(PriorityQueue waitQueue) {
-			// implement me
+			Lib.assertTrue(this.waitQueue == null);
+
+			this.waitQueue = waitQueue;
+			waitQueue.add(this);
+			waitQueue.updateDonation();
 		}
 
 		/**
@@ -252,7 +377,57 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#nextThread
 		 */
 		public void acquire(PriorityQueue waitQueue) {
-			// implement me
+			if (this.waitQueue == waitQueue)
+				this.waitQueue = null;
+
+			waitQueue.setOwner(this);
+		}
+
+		/**
+		 * Record that one of the queues this thread owns now donates
+		 * <i>newLevel</i> instead of <i>oldLevel</i>, either of which may be
+		 * -1 for no donation.
+		 */
+		protected void changeDonation(int oldLevel, int newLevel) {
+			if (oldLevel >= 0 && --donations[oldLevel] == 0)
+				donated &= ~(1 << oldLevel);
+			if (newLevel >= 0 && donations[newLevel]++ == 0)
+				donated |= 1 << newLevel;
+
+			updateEffectivePriority();
+		}
+
+		/**
+		 * Record that a queue donating <i>level</i> is no longer owned by this
+		 * thread.
+		 */
+		protected void removeDonation(int level) {
+			changeDonation(level, -1);
+		}
+
+		/**
+		 * Recompute the effective priority from the priority and the
+		 * donations. If it changed, move this thread to its new level in the
+		 * queue it is waiting on, which may in turn change what that queue
+		 * donates to its owner.
+		 */
+		protected void updateEffectivePriority() {
+			int newPriority = Math.max(priority,
+					31 - Integer.numberOfLeadingZeros(donated));
+
+			if (newPriority == effectivePriority)
+				return;
+
+			if (waitQueue == null) {
+				effectivePriority = newPriority;
+				return;
+			}
+
+			waitQueue.remove(this);
+			effectivePriority = newPriority;
+			waitQueue.add(this);
+
+			waitQueue.updateDonation();
 		}
 
 		/** The thread with which this object is associated. */
@@ -260,5 +435,22 @@ public class PriorityScheduler extends Scheduler {
 
 		/** The priority of the associated thread. */
 		protected int priority;
+
+		/** The cached effective priority of the associated thread. */
+		protected int effectivePriority = -1;
+
+		/** The queue the associated thread is waiting on, if any. */
+		protected PriorityQueue waitQueue = null;
+
+		/**
+		 * The number of owned queues donating each priority level, and a
+		 * bitmap of the levels with a nonzero count.
+		 */
+		private int[] donations = new int[priorityMaximum + 1];
+
+		private int donated = 0;
+
+		/** The neighbours of this thread in its level's list. */
+		private ThreadState prev = null, next = null;
 	}
 }
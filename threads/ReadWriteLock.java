@@ -0,0 +1,198 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <tt>ReadWriteLock</tt> is a lock that any number of readers can hold at
+ * once, or a single writer can hold alone:
+ *
+ * <ul>
+ * <li><tt>acquireRead()</tt>: wait until no writer holds or is waiting for the
+ * lock, then hold it as a reader.
+ * <li><tt>acquireWrite()</tt>: wait until no thread holds the lock, then hold
+ * it as the writer.
+ * <li><tt>releaseRead()</tt> and <tt>releaseWrite()</tt>: give the lock up.
+ * </ul>
+ *
+ * <p>
+ * Writers are preferred: once a writer is waiting, new readers wait behind it,
+ * so a steady stream of readers cannot starve writers. When a writer releases
+ * the lock, the next waiting writer gets it if there is one; otherwise every
+ * waiting reader does.
+ *
+ * <p>
+ * Readers and writers wait on separate queues, both created with
+ * <tt>transferPriority</tt> set, and both queues are given to the writer
+ * holding the lock, so waiting readers as well as waiting writers donate
+ * priority to it. Readers holding the lock are not donated to, since a thread
+ * queue has a single owner.
+ */
+public class ReadWriteLock {
+	/**
+	 * Allocate a new reader-writer lock. The lock will initially be free.
+	 */
+	public ReadWriteLock() {
+	}
+
+	/**
+	 * Acquire this lock as a reader. The current thread must not hold this
+	 * lock.
+	 *
+	 * <p>
+	 * As with <tt>Lock</tt>, a free lock with no writer waiting is taken
+	 * without disabling interrupts, since kernel code can only be preempted
+	 * when interrupts are enabled or restored.
+	 */
+	public void acquireRead() {
+		Lib.assertTrue(writer != KThread.currentThread());
+
+		if (writer == null && numWritersWaiting == 0) {
+			numReaders++;
+			return;
+		}
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		// the writer that releases the lock counts this thread as a reader
+		numReadersWaiting++;
+		readQueue.waitForAccess(KThread.currentThread());
+		KThread.sleep();
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Release this lock, held as a reader. The last reader out hands the lock
+	 * to the next waiting writer.
+	 */
+	public void releaseRead() {
+		Lib.assertTrue(numReaders > 0);
+
+		if (--numReaders > 0 || numWritersWaiting == 0)
+			return;
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		grantNextWriter();
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Acquire this lock as the writer. The current thread must not hold this
+	 * lock.
+	 */
+	public void acquireWrite() {
+		KThread thread = KThread.currentThread();
+		Lib.assertTrue(writer != thread);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		if (writer != null || numReaders > 0) {
+			numWritersWaiting++;
+			writeQueue.waitForAccess(thread);
+			KThread.sleep();
+		}
+		else {
+			writer = thread;
+			writeQueue.acquire(thread);
+			giveReadQueueToWriter();
+		}
+
+		Lib.assertTrue(writer == thread);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Release this lock, held as the writer, to the next waiting writer, or
+	 * else to all the waiting readers.
+	 */
+	public void releaseWrite() {
+		Lib.assertTrue(isWriteHeldByCurrentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		writer = null;
+
+		if (numWritersWaiting > 0) {
+			grantNextWriter();
+		}
+		else {
+			wakeReaders();
+
+			// no writer is waiting, so this only gives up the queue
+			writeQueue.nextThread();
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Test if the current thread holds this lock as the writer.
+	 *
+	 * @return <tt>true</tt> if the current thread holds this lock as the
+	 * writer.
+	 */
+	public boolean isWriteHeldByCurrentThread() {
+		return (writer == KThread.currentThread());
+	}
+
+	private void grantNextWriter() {
+		writer = writeQueue.nextThread();
+		numWritersWaiting--;
+		giveReadQueueToWriter();
+
+		writer.ready();
+	}
+
+	/**
+	 * Make the reader queue's owner the new writer, so the waiting readers
+	 * donate to it. A queue may only be acquired directly while it is empty,
+	 * so any waiting readers are taken off the queue and put back. They will
+	 * all be woken together, so the order they return in does not matter.
+	 */
+	private void giveReadQueueToWriter() {
+		if (numReadersWaiting == 0) {
+			readQueue.acquire(writer);
+			return;
+		}
+
+		KThread[] readers = new KThread[numReadersWaiting];
+		for (int i = 0; i < readers.length; i++)
+			readers[i] = readQueue.nextThread();
+
+		readQueue.acquire(writer);
+
+		for (int i = 0; i < readers.length; i++)
+			readQueue.waitForAccess(readers[i]);
+	}
+
+	/**
+	 * Hand the lock to every waiting reader.
+	 */
+	private void wakeReaders() {
+		KThread thread;
+		while ((thread = readQueue.nextThread()) != null) {
+			numReaders++;
+			thread.ready();
+		}
+
+		numReadersWaiting = 0;
+	}
+
+	/** The thread holding this lock as the writer, if any. */
+	private KThread writer = null;
+
+	private int numReaders = 0;
+
+	private int numWritersWaiting = 0;
+
+	private int numReadersWaiting = 0;
+
+	private ThreadQueue readQueue = ThreadedKernel.scheduler
+			.newThreadQueue(true);
+
+	private ThreadQueue writeQueue = ThreadedKernel.scheduler
+			.newThreadQueue(true);
+}
@@ -129,6 +129,40 @@ public abstract class Scheduler {
 		setPriority(KThread.currentThread(), priority);
 	}
 
+	/**
+	 * Called by the alarm when the timer interrupt is about to preempt the
+	 * current thread, which has therefore run for a full quantum. Must be
+	 * called with interrupts disabled. The default does nothing.
+	 * 
+	 * @param thread the thread being preempted.
+	 */
+	public void preempt(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+	}
+
+	/**
+	 * Called when the specified thread is about to block waiting for the alarm
+	 * or for an I/O device, rather than for another thread, so the next time it
+	 * is made ready is the end of that wait. Must be called with interrupts
+	 * disabled. The default does nothing.
+	 * 
+	 * @param thread the thread that is about to block.
+	 */
+	public void blockForIO(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+	}
+
+	/**
+	 * Called when the specified thread finishes, so the scheduler can release
+	 * anything it reserved for it. Must be called with interrupts disabled.
+	 * The default does nothing.
+	 * 
+	 * @param thread the thread that is finishing.
+	 */
+	public void finish(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+	}
+
 	/**
 	 * If possible, raise the priority of the current thread in some
 	 * scheduler-dependent way.
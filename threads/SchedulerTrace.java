@@ -0,0 +1,256 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+
+/**
+ * Records, for every thread, how long it waits on the ready queue before it is
+ * dispatched, how long it runs once dispatched, and how long it stays blocked,
+ * all in simulated ticks. Each is kept as a histogram with power-of-two
+ * buckets, so recording an interval costs a few array updates.
+ *
+ * <p>
+ * Tracing is enabled by setting <tt>SchedulerTrace.enabled</tt> to
+ * <tt>true</tt>. When Nachos halts, the histograms of all threads together are
+ * printed before the statistics, and if <tt>SchedulerTrace.printCsv</tt> is
+ * <tt>true</tt>, they are also printed as CSV, one line per non-empty bucket.
+ * The CSV goes to standard output rather than a file, since halt handlers run
+ * with the kernel shutting down and cannot block on the file system.
+ *
+ * <p>
+ * A thread's histograms are only kept separately while the thread exists.
+ * When it finishes they are added to the histograms of all finished threads,
+ * which appear in the CSV as a single thread named <tt>finished</tt>, so
+ * the trace uses a bounded amount of memory however many threads are forked.
+ */
+public class SchedulerTrace {
+	/**
+	 * Allocate a new scheduler trace, and arrange for it to be printed when
+	 * Nachos halts.
+	 */
+	public SchedulerTrace() {
+		printCsv = Config.getBoolean("SchedulerTrace.printCsv", false);
+
+		Machine.addHaltHandler(new Runnable() {
+			public void run() {
+				print();
+			}
+		});
+	}
+
+	/**
+	 * Called when <i>thread</i> is added to the ready queue. If the thread
+	 * was running, this ends its run; otherwise it ends the time it was
+	 * blocked.
+	 */
+	void ready(KThread thread) {
+		Record record = getRecord(thread);
+		long time = Machine.timer().getTime();
+
+		if (record.state == running)
+			record.add(runTime, time - record.since);
+		else if (record.state == blocked)
+			record.add(blockTime, time - record.since);
+
+		record.state = waiting;
+		record.since = time;
+	}
+
+	/**
+	 * Called when <i>thread</i> is dispatched, ending its wait on the ready
+	 * queue.
+	 */
+	void dispatch(KThread thread) {
+		Record record = getRecord(thread);
+		long time = Machine.timer().getTime();
+
+		if (record.state == waiting)
+			record.add(waitTime, time - record.since);
+
+		record.state = running;
+		record.since = time;
+	}
+
+	/**
+	 * Called when the current thread blocks or finishes, ending its run.
+	 */
+	void sleep(KThread thread, boolean finished) {
+		Record record = getRecord(thread);
+		long time = Machine.timer().getTime();
+
+		if (record.state == running)
+			record.add(runTime, time - record.since);
+
+		record.state = blocked;
+		record.since = time;
+
+		if (finished) {
+			finishedRecord.addAll(record);
+			remove(record);
+			thread.traceRecord = null;
+		}
+	}
+
+	/**
+	 * Print the histograms of all threads together, and the CSV if it was
+	 * requested.
+	 */
+	public void print() {
+		Record all = new Record("all");
+		all.addAll(finishedRecord);
+		for (Record record : records)
+			all.addAll(record);
+
+		long[][] total = all.histogram;
+
+		System.out.println("Scheduler trace: " + numThreads
+				+ " threads, " + ThreadedKernel.scheduler.getClass().getName());
+		System.out.println("  " + pad("ticks", 12) + pad("ready wait", 14)
+				+ pad("running", 14) + pad("blocked", 14));
+
+		int last = 0;
+		for (int bucket = 0; bucket < numBuckets; bucket++) {
+			for (int kind = 0; kind < numKinds; kind++) {
+				if (total[kind][bucket] != 0)
+					last = bucket;
+			}
+		}
+
+		for (int bucket = 0; bucket <= last; bucket++) {
+			String line = "  " + pad(bucketName(bucket), 12);
+			for (int kind = 0; kind < numKinds; kind++)
+				line += pad("" + total[kind][bucket], 14);
+			System.out.println(line);
+		}
+
+		if (printCsv)
+			printCsv();
+	}
+
+	private void printCsv() {
+		System.out.println("thread,kind,minTicks,maxTicks,count");
+
+		printCsv(finishedRecord);
+		for (Record record : records)
+			printCsv(record);
+	}
+
+	private void printCsv(Record record) {
+		for (int kind = 0; kind < numKinds; kind++) {
+			for (int bucket = 0; bucket < numBuckets; bucket++) {
+				if (record.histogram[kind][bucket] == 0)
+					continue;
+
+				System.out.println(record.name + "," + kindNames[kind] + ","
+						+ bucketMin(bucket) + "," + bucketMax(bucket) + ","
+						+ record.histogram[kind][bucket]);
+			}
+		}
+	}
+
+	private Record getRecord(KThread thread) {
+		if (thread.traceRecord == null) {
+			Record record = new Record(thread.toString());
+			record.index = records.size();
+			records.add(record);
+			numThreads++;
+
+			thread.traceRecord = record;
+		}
+
+		return thread.traceRecord;
+	}
+
+	/**
+	 * Remove a record from <tt>records</tt> by moving the last record into
+	 * its place.
+	 */
+	private void remove(Record record) {
+		Record last = records.remove(records.size() - 1);
+		if (last != record) {
+			last.index = record.index;
+			records.set(record.index, last);
+		}
+	}
+
+	/**
+	 * Return the bucket for an interval: 0 for no ticks, and <i>b</i> for
+	 * <tt>2<sup>b-1</sup></tt> to <tt>2<sup>b</sup> - 1</tt> ticks.
+	 */
+	private static int bucket(long ticks) {
+		return 64 - Long.numberOfLeadingZeros(ticks);
+	}
+
+	private static long bucketMin(int bucket) {
+		return (bucket == 0) ? 0 : 1L << (bucket - 1);
+	}
+
+	private static long bucketMax(int bucket) {
+		return (1L << bucket) - 1;
+	}
+
+	private static String bucketName(int bucket) {
+		if (bucket <= 1)
+			return "" + bucketMin(bucket);
+
+		return bucketMin(bucket) + "-" + bucketMax(bucket);
+	}
+
+	private static String pad(String s, int width) {
+		while (s.length() < width)
+			s = " " + s;
+
+		return s;
+	}
+
+	/** The histograms and current state of one thread. */
+	static class Record {
+		Record(String name) {
+			this.name = name;
+		}
+
+		void add(int kind, long ticks) {
+			histogram[kind][bucket(ticks)]++;
+		}
+
+		void addAll(Record record) {
+			for (int kind = 0; kind < numKinds; kind++) {
+				for (int bucket = 0; bucket < numBuckets; bucket++)
+					histogram[kind][bucket] += record.histogram[kind][bucket];
+			}
+		}
+
+		private String name;
+
+		private long[][] histogram = new long[numKinds][numBuckets];
+
+		private int state = idle;
+
+		/** The time the thread entered its current state. */
+		private long since;
+
+		/** The position of this record in <tt>records</tt>. */
+		private int index;
+	}
+
+	private boolean printCsv;
+
+	/** The records of the threads that have not finished. */
+	private ArrayList<Record> records = new ArrayList<Record>();
+
+	/** The histograms of every thread that has finished. */
+	private Record finishedRecord = new Record("finished");
+
+	private int numThreads = 0;
+
+	private static final int waitTime = 0, runTime = 1, blockTime = 2;
+
+	private static final int numKinds = 3;
+
+	private static final String[] kindNames = { "wait", "run", "block" };
+
+	private static final int numBuckets = 64;
+
+	private static final int idle = 0, waiting = 1, running = 2, blocked = 3;
+}
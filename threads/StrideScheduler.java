@@ -0,0 +1,477 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+
+/**
+ * A scheduler that divides access among threads in proportion to their
+ * tickets, deterministically.
+ *
+ * <p>
+ * Like a lottery scheduler, a stride scheduler associates a number of tickets
+ * with each thread. Each thread also has a <i>stride</i>, inversely
+ * proportional to its tickets, and a <i>pass</i>. The thread dequeued is
+ * always the waiting thread with the lowest pass, and its pass then advances
+ * by its stride. Over any interval a thread is dequeued within one of its
+ * exact share, rather than only in expectation. Threads with equal passes are
+ * dequeued in the order they began waiting.
+ *
+ * <p>
+ * Tickets are transferred through locks and joins, and add, as with a lottery
+ * scheduler. When a thread's tickets change while it waits, the part of its
+ * stride it has yet to wait is scaled to the new stride.
+ */
+public class StrideScheduler extends Scheduler {
+	/**
+	 * Allocate a new stride scheduler.
+	 */
+	public StrideScheduler() {
+	}
+
+	/**
+	 * Allocate a new stride thread queue.
+	 *
+	 * @param transferPriority <tt>true</tt> if this queue should transfer
+	 * tickets from waiting threads to the owning thread.
+	 * @return a new stride thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new StrideQueue(transferPriority);
+	}
+
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getThreadState(thread).getTickets();
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return (int) Math.min(getThreadState(thread).getEffectiveTickets(),
+				Integer.MAX_VALUE);
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= priorityMinimum
+				&& priority <= priorityMaximum);
+
+		getThreadState(thread).setTickets(priority);
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMaximum)
+			ret = false;
+		else
+			setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMinimum)
+			ret = false;
+		else
+			setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	/**
+	 * The default number of tickets for a new thread.
+	 */
+	public static final int priorityDefault = 1;
+
+	/**
+	 * The minimum number of tickets that a thread can have.
+	 */
+	public static final int priorityMinimum = 1;
+
+	/**
+	 * The maximum number of tickets that a thread can have.
+	 */
+	public static final int priorityMaximum = Integer.MAX_VALUE;
+
+	/**
+	 * The stride of a thread with one ticket. A thread with <i>n</i> tickets
+	 * has a stride of <tt>strideOne / n</tt>, but never less than 1.
+	 */
+	public static final long strideOne = 1L << 30;
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that keeps its waiting threads in a binary heap
+	 * ordered by pass.
+	 */
+	protected class StrideQueue extends ThreadQueue {
+		StrideQueue(boolean transferPriority) {
+			this.transferPriority = transferPriority;
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			getThreadState(thread).waitForAccess(this);
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			getThreadState(thread).acquire(this);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState next = pickNextThread();
+			if (next == null) {
+				setOwner(null);
+				return null;
+			}
+
+			remove(next);
+			globalPass = next.pass;
+			next.remain = next.stride();
+			next.acquire(this);
+
+			return next.thread;
+		}
+
+		/**
+		 * Return the next thread that <tt>nextThread()</tt> would return,
+		 * without modifying the state of this queue.
+		 *
+		 * @return the next thread that <tt>nextThread()</tt> would return.
+		 */
+		protected ThreadState pickNextThread() {
+			if (numWaiting == 0)
+				return null;
+
+			return heap[0];
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			// the heap is only partially ordered, so sort a copy of it
+			ThreadState[] order = Arrays.copyOf(heap, numWaiting);
+			for (int i = 1; i < order.length; i++) {
+				ThreadState state = order[i];
+				int j = i;
+				for (; j > 0 && precedes(state, order[j - 1]); j--)
+					order[j] = order[j - 1];
+				order[j] = state;
+			}
+
+			for (int i = 0; i < order.length; i++)
+				System.out.print(order[i].thread + " (" + order[i].pass + ") ");
+		}
+
+		/**
+		 * Add a thread to the heap, one remaining stride past the pass of the
+		 * last thread dequeued.
+		 */
+		protected void add(ThreadState state) {
+			if (numWaiting == heap.length)
+				heap = Arrays.copyOf(heap, heap.length * 2);
+
+			state.pass = globalPass + state.remain;
+			state.sequence = nextSequence++;
+
+			heap[numWaiting] = state;
+			state.heapIndex = numWaiting++;
+			siftUp(state.heapIndex);
+
+			changeTotal(state.effectiveTickets);
+		}
+
+		/**
+		 * Take a thread out of the heap.
+		 */
+		protected void remove(ThreadState state) {
+			int i = state.heapIndex;
+			ThreadState last = heap[--numWaiting];
+			heap[numWaiting] = null;
+			state.heapIndex = -1;
+
+			if (last != state) {
+				place(last, i);
+				siftUp(i);
+				siftDown(last.heapIndex);
+			}
+
+			changeTotal(-state.effectiveTickets);
+		}
+
+		/**
+		 * Called when the effective tickets of a waiting thread change from
+		 * <i>oldTickets</i>. Scale the rest of its stride to the new stride,
+		 * restore the heap order, and pass the change on to the owner.
+		 */
+		protected void reweight(ThreadState state, long oldTickets) {
+			long left = state.pass - globalPass;
+			state.pass = globalPass + left * state.stride()
+					/ stride(oldTickets);
+
+			siftUp(state.heapIndex);
+			siftDown(state.heapIndex);
+
+			changeTotal(state.effectiveTickets - oldTickets);
+		}
+
+		/**
+		 * Give this queue to a new owner, moving the tickets of the waiting
+		 * threads from the old owner to the new one.
+		 */
+		protected void setOwner(ThreadState newOwner) {
+			if (!transferPriority || owner == newOwner)
+				return;
+
+			if (owner != null)
+				owner.changeDonation(-totalTickets);
+
+			owner = newOwner;
+
+			if (owner != null)
+				owner.changeDonation(totalTickets);
+		}
+
+		private void changeTotal(long delta) {
+			totalTickets += delta;
+
+			if (transferPriority && owner != null)
+				owner.changeDonation(delta);
+		}
+
+		private void siftUp(int i) {
+			ThreadState state = heap[i];
+
+			while (i > 0) {
+				int parent = (i - 1) / 2;
+				if (!precedes(state, heap[parent]))
+					break;
+
+				place(heap[parent], i);
+				i = parent;
+			}
+
+			place(state, i);
+		}
+
+		private void siftDown(int i) {
+			ThreadState state = heap[i];
+
+			while (true) {
+				int child = 2 * i + 1;
+				if (child >= numWaiting)
+					break;
+
+				if (child + 1 < numWaiting
+						&& precedes(heap[child + 1], heap[child]))
+					child++;
+
+				if (!precedes(heap[child], state))
+					break;
+
+				place(heap[child], i);
+				i = child;
+			}
+
+			place(state, i);
+		}
+
+		private void place(ThreadState state, int i) {
+			heap[i] = state;
+			state.heapIndex = i;
+		}
+
+		private boolean precedes(ThreadState state1, ThreadState state2) {
+			return state1.pass < state2.pass
+					|| (state1.pass == state2.pass && state1.sequence < state2.sequence);
+		}
+
+		/**
+		 * <tt>true</tt> if this queue should transfer tickets from waiting
+		 * threads to the owning thread.
+		 */
+		public boolean transferPriority;
+
+		private ThreadState[] heap = new ThreadState[16];
+
+		private int numWaiting = 0;
+
+		/** The pass of the last thread dequeued. */
+		private long globalPass = 0;
+
+		/** Breaks ties between equal passes in favour of the earlier waiter. */
+		private long nextSequence = 0;
+
+		/** The sum of the effective tickets of the waiting threads. */
+		private long totalTickets = 0;
+
+		/** The thread that has access, if this queue transfers tickets. */
+		protected ThreadState owner = null;
+	}
+
+	/**
+	 * The scheduling state of a thread under a stride scheduler.
+	 *
+	 * @see nachos.threads.KThread#schedulingState
+	 */
+	protected class ThreadState {
+		/**
+		 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+		 * specified thread.
+		 *
+		 * @param thread the thread this state belongs to.
+		 */
+		public ThreadState(KThread thread) {
+			this.thread = thread;
+
+			tickets = priorityDefault;
+			effectiveTickets = priorityDefault;
+			remain = stride();
+		}
+
+		/**
+		 * Return the tickets of the associated thread.
+		 *
+		 * @return the tickets of the associated thread.
+		 */
+		public int getTickets() {
+			return tickets;
+		}
+
+		/**
+		 * Return the tickets of the associated thread plus the tickets donated
+		 * to it.
+		 *
+		 * @return the effective tickets of the associated thread.
+		 */
+		public long getEffectiveTickets() {
+			return effectiveTickets;
+		}
+
+		/**
+		 * Set the tickets of the associated thread to the specified value.
+		 *
+		 * @param tickets the new number of tickets.
+		 */
+		public void setTickets(int tickets) {
+			long delta = (long) tickets - this.tickets;
+			this.tickets = tickets;
+
+			changeDonation(delta);
+		}
+
+		/**
+		 * Called when the associated thread begins waiting on
+		 * <i>waitQueue</i>.
+		 *
+		 * @param waitQueue the queue that the associated thread is now waiting
+		 * on.
+		 *
+		 * @see nachos.threads.ThreadQueue#waitForAccess
+		 */
+		public void waitForAccess(StrideQueue waitQueue) {
+			Lib.assertTrue(this.waitQueue == null);
+
+			this.waitQueue = waitQueue;
+			waitQueue.add(this);
+		}
+
+		/**
+		 * Called when the associated thread has acquired access to whatever is
+		 * guarded by <i>waitQueue</i>.
+		 *
+		 * @see nachos.threads.ThreadQueue#acquire
+		 * @see nachos.threads.ThreadQueue#nextThread
+		 */
+		public void acquire(StrideQueue waitQueue) {
+			if (this.waitQueue == waitQueue)
+				this.waitQueue = null;
+
+			waitQueue.setOwner(this);
+		}
+
+		/**
+		 * Add <i>delta</i> to the effective tickets of the associated thread,
+		 * and to every queue and owner it is donating to.
+		 */
+		protected void changeDonation(long delta) {
+			if (delta == 0)
+				return;
+
+			long oldTickets = effectiveTickets;
+			effectiveTickets += delta;
+
+			if (waitQueue != null)
+				waitQueue.reweight(this, oldTickets);
+			else
+				remain = remain * stride() / StrideScheduler.stride(oldTickets);
+		}
+
+		/**
+		 * Return the stride for the effective tickets of the associated thread.
+		 */
+		protected long stride() {
+			return StrideScheduler.stride(effectiveTickets);
+		}
+
+		/** The thread with which this object is associated. */
+		protected KThread thread;
+
+		/** The tickets of the associated thread. */
+		protected int tickets;
+
+		/** The tickets of the associated thread plus its donations. */
+		protected long effectiveTickets;
+
+		/** The queue the associated thread is waiting on, if any. */
+		protected StrideQueue waitQueue = null;
+
+		/** The pass of the associated thread in <tt>waitQueue</tt>. */
+		protected long pass;
+
+		/**
+		 * How far past the queue's pass the associated thread will be placed
+		 * when it next waits; one stride after it is dequeued.
+		 */
+		protected long remain;
+
+		private long sequence;
+
+		private int heapIndex = -1;
+	}
+
+	private static long stride(long tickets) {
+		return Math.max(strideOne / tickets, 1);
+	}
+}
@@ -1,25 +1,49 @@
 package nachos.threads;
 
+import java.util.Collection;
 import java.util.LinkedList;
 import nachos.machine.*;
 import nachos.threads.*;
 
 /**
- * A synchronized queue.
+ * A synchronized queue, kept in a ring buffer so that adding or removing an
+ * object without waiting does not allocate anything unless the buffer has to
+ * grow. Waiting still allocates: <tt>Condition.sleep()</tt> allocates a
+ * semaphore and a list node for each wait, and the timed
+ * <tt>removeFirst()</tt> a list node.
+ * 
+ * <p>
+ * A queue may be bounded, in which case <tt>add()</tt> blocks while the queue
+ * is full, pushing back on producers that get ahead of their consumers.
  */
 public class SynchList {
 	/**
-	 * Allocate a new synchronized queue.
+	 * Allocate a new unbounded synchronized queue.
 	 */
 	public SynchList() {
-		list = new LinkedList<Object>();
+		this(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Allocate a new synchronized queue that holds at most <i>capacity</i>
+	 * objects.
+	 * 
+	 * @param capacity the most objects the queue can hold.
+	 */
+	public SynchList(int capacity) {
+		Lib.assertTrue(capacity > 0);
+
+		this.capacity = capacity;
+		elements = new Object[Math.min(capacity, initialSize)];
 		lock = new Lock();
 		listEmpty = new Condition(lock);
+		listFull = new Condition(lock);
 	}
 
 	/**
-	 * Add the specified object to the end of the queue. If another thread is
-	 * waiting in <tt>removeFirst()</tt>, it is woken up.
+	 * Add the specified object to the end of the queue, blocking until the
+	 * queue is not full if necessary. If another thread is waiting in
+	 * <tt>removeFirst()</tt>, it is woken up.
 	 * 
 	 * @param o the object to add. Must not be <tt>null</tt>.
 	 */
@@ -27,8 +51,17 @@ public class SynchList {
 		Lib.assertTrue(o != null);
 
 		lock.acquire();
-		list.add(o);
+		while (count == capacity)
+			listFull.sleep();
+
+		if (count == elements.length)
+			grow();
+
+		elements[(head + count) % elements.length] = o;
+		count++;
+
 		listEmpty.wake();
+		wakeTimedWaiter();
 		lock.release();
 	}
 
@@ -42,14 +75,143 @@ public class SynchList {
 		Object o;
 
 		lock.acquire();
-		while (list.isEmpty())
+		while (count == 0)
 			listEmpty.sleep();
-		o = list.removeFirst();
+		o = take();
 		lock.release();
 
 		return o;
 	}
 
+	/**
+	 * Remove an object from the front of the queue, blocking for at most
+	 * <i>timeout</i> ticks until the queue is non-empty. The wait is timed by
+	 * <tt>ThreadedKernel.alarm</tt>, so it ends at the first timer interrupt
+	 * after the timeout.
+	 * 
+	 * @param timeout the most ticks to wait for.
+	 * @return the element removed from the front of the queue, or
+	 * <tt>null</tt> if the queue stayed empty.
+	 */
+	public Object removeFirst(long timeout) {
+		long deadline = Machine.timer().getTime() + timeout;
+		Object o = null;
+
+		lock.acquire();
+		while (count == 0) {
+			long remaining = deadline - Machine.timer().getTime();
+			if (remaining <= 0)
+				break;
+
+			// keep interrupts disabled until asleep, so no add() is missed
+			boolean intStatus = Machine.interrupt().disable();
+
+			KThread thread = KThread.currentThread();
+			timedWaiters.add(thread);
+			lock.release();
+
+			ThreadedKernel.alarm.waitUntil(remaining);
+
+			// still listed if the wait timed out rather than being cut short
+			timedWaiters.remove(thread);
+
+			Machine.interrupt().restore(intStatus);
+			lock.acquire();
+		}
+
+		if (count > 0)
+			o = take();
+		lock.release();
+
+		return o;
+	}
+
+	/**
+	 * Remove up to <i>n</i> objects from the front of the queue, blocking
+	 * until the queue is non-empty if necessary.
+	 * 
+	 * @param n the most objects to remove.
+	 * @return the objects removed, in order; at least one.
+	 */
+	public Object[] removeUpTo(int n) {
+		Lib.assertTrue(n > 0);
+
+		lock.acquire();
+		while (count == 0)
+			listEmpty.sleep();
+
+		Object[] objects = new Object[Math.min(n, count)];
+		for (int i = 0; i < objects.length; i++)
+			objects[i] = take();
+		lock.release();
+
+		return objects;
+	}
+
+	/**
+	 * Remove every object in the queue and add them, in order, to
+	 * <i>collection</i>. Does not block.
+	 * 
+	 * @param collection the collection to add the objects to.
+	 * @return the number of objects removed.
+	 */
+	public int drainTo(Collection<Object> collection) {
+		lock.acquire();
+		int n = count;
+		while (count > 0)
+			collection.add(take());
+		lock.release();
+
+		return n;
+	}
+
+	/**
+	 * Remove the object at the front of the queue, which must not be empty,
+	 * waking a thread waiting to add. The lock must be held.
+	 */
+	private Object take() {
+		Object o = elements[head];
+		elements[head] = null;
+		head = (head + 1) % elements.length;
+		count--;
+
+		listFull.wake();
+
+		return o;
+	}
+
+	/**
+	 * Double the size of the ring buffer, which must be full, up to the
+	 * capacity.
+	 */
+	private void grow() {
+		Object[] newElements = new Object[(int) Math.min(
+				(long) elements.length * 2, capacity)];
+
+		for (int i = 0; i < count; i++)
+			newElements[i] = elements[(head + i) % elements.length];
+
+		elements = newElements;
+		head = 0;
+	}
+
+	/**
+	 * Wake a thread waiting in the timed <tt>removeFirst()</tt>, skipping any
+	 * whose wait has already timed out.
+	 */
+	private void wakeTimedWaiter() {
+		if (timedWaiters.isEmpty())
+			return;
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		while (!timedWaiters.isEmpty()
+				&& !ThreadedKernel.alarm.cancel(timedWaiters.removeFirst()))
+			;
+
+		Machine.interrupt().restore(intStatus);
+	}
+
 	private static class PingTest implements Runnable {
 		PingTest(SynchList ping, SynchList pong) {
 			this.ping = ping;
@@ -80,11 +242,124 @@ public class SynchList {
 			ping.add(o);
 			Lib.assertTrue(pong.removeFirst() == o);
 		}
+
+		testBounded();
+		testBatches();
+		testTimeout();
+		testTimeoutCancelled();
+	}
+
+	/**
+	 * Test that a producer blocks once it fills a bounded queue, and goes on
+	 * once a consumer makes room.
+	 */
+	private static void testBounded() {
+		final SynchList list = new SynchList(2);
+		final int[] numAdded = new int[1];
+
+		KThread producer = new KThread(new Runnable() {
+			public void run() {
+				for (int i = 0; i < 5; i++) {
+					list.add(new Integer(i));
+					numAdded[0]++;
+				}
+			}
+		}).setName("producer");
+		producer.fork();
+
+		while (numAdded[0] < 2)
+			KThread.yield();
+		for (int i = 0; i < 10; i++)
+			KThread.yield();
+		Lib.assertTrue(numAdded[0] == 2 && list.count == 2);
+
+		for (int i = 0; i < 5; i++)
+			Lib.assertTrue(((Integer) list.removeFirst()).intValue() == i);
+
+		producer.join();
+		Lib.assertTrue(numAdded[0] == 5);
+	}
+
+	/**
+	 * Test that <tt>removeUpTo()</tt> and <tt>drainTo()</tt> remove objects
+	 * in order.
+	 */
+	private static void testBatches() {
+		SynchList list = new SynchList();
+		for (int i = 0; i < 5; i++)
+			list.add(new Integer(i));
+
+		Object[] objects = list.removeUpTo(3);
+		Lib.assertTrue(objects.length == 3);
+		for (int i = 0; i < 3; i++)
+			Lib.assertTrue(((Integer) objects[i]).intValue() == i);
+
+		LinkedList<Object> rest = new LinkedList<Object>();
+		Lib.assertTrue(list.drainTo(rest) == 2);
+		Lib.assertTrue(((Integer) rest.get(0)).intValue() == 3
+				&& ((Integer) rest.get(1)).intValue() == 4);
+
+		Lib.assertTrue(list.drainTo(rest) == 0 && list.count == 0);
 	}
 
-	private LinkedList<Object> list;
+	/**
+	 * Test that a timed <tt>removeFirst()</tt> on an empty queue gives up
+	 * after its timeout.
+	 */
+	private static void testTimeout() {
+		SynchList list = new SynchList();
+
+		long start = Machine.timer().getTime();
+		Lib.assertTrue(list.removeFirst(1000) == null);
+		Lib.assertTrue(Machine.timer().getTime() - start >= 1000);
+		Lib.assertTrue(list.timedWaiters.isEmpty());
+	}
+
+	/**
+	 * Test that <tt>add()</tt> cuts a timed <tt>removeFirst()</tt> short,
+	 * through <tt>Alarm.cancel()</tt>.
+	 */
+	private static void testTimeoutCancelled() {
+		final SynchList list = new SynchList();
+		final Object[] removed = new Object[1];
+		final long[] waited = new long[1];
+		final long timeout = 1000000;
+
+		KThread waiter = new KThread(new Runnable() {
+			public void run() {
+				long start = Machine.timer().getTime();
+				removed[0] = list.removeFirst(timeout);
+				waited[0] = Machine.timer().getTime() - start;
+			}
+		}).setName("timed waiter");
+		waiter.fork();
+
+		while (list.timedWaiters.isEmpty())
+			KThread.yield();
+
+		Object o = new Integer(42);
+		list.add(o);
+		waiter.join();
+
+		Lib.assertTrue(removed[0] == o && waited[0] < timeout);
+		Lib.assertTrue(list.timedWaiters.isEmpty());
+	}
+
+	/** The queued objects, <tt>count</tt> of them starting at <tt>head</tt>. */
+	private Object[] elements;
+
+	private int head = 0, count = 0;
+
+	private int capacity;
 
 	private Lock lock;
 
 	private Condition listEmpty;
+
+	private Condition listFull;
+
+	/** The threads waiting in the timed <tt>removeFirst()</tt>. */
+	private LinkedList<KThread> timedWaiters = new LinkedList<KThread>();
+
+	private static final int initialSize = 16;
 }
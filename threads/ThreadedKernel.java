@@ -31,6 +31,14 @@ public class ThreadedKernel extends Kernel {
 		else
 			fileSystem = null;
 
+		// trace scheduling if requested
+		if (Config.getBoolean("SchedulerTrace.enabled", false))
+			KThread.trace = new SchedulerTrace();
+
+		// count lock contention if requested
+		if (Config.getBoolean("Lock.printStats", false))
+			Lock.printStatsAtHalt();
+
 		// start threading
 		new KThread(null);
 
@@ -91,4 +99,10 @@ public class ThreadedKernel extends Kernel {
 	private static Rider dummy6 = null;
 
 	private static ElevatorController dummy7 = null;
+
+	private static StrideScheduler dummy8 = null;
+
+	private static MLFQScheduler dummy9 = null;
+
+	private static EDFScheduler dummy10 = null;
 }
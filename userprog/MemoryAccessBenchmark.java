@@ -0,0 +1,104 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+/**
+ * A kernel that compares the cost of word access to physical memory through
+ * <tt>Lib.bytesToInt()</tt> and <tt>Lib.bytesFromInt()</tt>, which assemble
+ * each word a byte at a time, with the processor's whole-word accessors
+ * <tt>readPhysInt()</tt> and <tt>writePhysInt()</tt>.
+ *
+ * <p>
+ * To use it, set <tt>Kernel.kernel</tt> to
+ * <tt>nachos.userprog.MemoryAccessBenchmark</tt>. Each method makes
+ * <tt>MemoryAccessBenchmark.numPasses</tt> read-modify-write passes over all
+ * of physical memory, after the same number of warm-up passes. The
+ * <tt>Lib</tt> methods need the memory array, so this requires the default
+ * <tt>heap</tt> memory backend.
+ */
+public class MemoryAccessBenchmark extends UserKernel {
+	/**
+	 * Allocate a new memory access benchmark kernel.
+	 */
+	public MemoryAccessBenchmark() {
+		super();
+	}
+
+	/**
+	 * Initialize this kernel.
+	 */
+	public void initialize(String[] args) {
+		super.initialize(args);
+
+		numPasses = Config.getInteger("MemoryAccessBenchmark.numPasses", 200);
+		Lib.assertTrue(numPasses > 0);
+	}
+
+	/**
+	 * Skip the console self test, which waits for input.
+	 */
+	public void selfTest() {
+	}
+
+	/**
+	 * Time both access methods, print the results, and halt.
+	 */
+	public void run() {
+		// warm up both methods, so the JIT has compiled them before timing
+		libPasses(numPasses);
+		processorPasses(numPasses);
+
+		long libTime = libPasses(numPasses);
+		long processorTime = processorPasses(numPasses);
+
+		long accesses = (long) numPasses * memorySize() / 4 * 2;
+
+		System.out.println("MemoryAccessBenchmark: " + accesses
+				+ " word accesses per method");
+		System.out.println("  Lib.bytesToInt/bytesFromInt: "
+				+ (libTime / accesses) + "." + (libTime * 10 / accesses % 10)
+				+ " ns/access");
+		System.out.println("  Processor.readPhysInt/writePhysInt: "
+				+ (processorTime / accesses) + "."
+				+ (processorTime * 10 / accesses % 10) + " ns/access");
+
+		terminate();
+	}
+
+	private long libPasses(int passes) {
+		byte[] memory = Machine.processor().getMemory();
+
+		long start = System.nanoTime();
+
+		for (int pass = 0; pass < passes; pass++) {
+			for (int paddr = 0; paddr < memory.length; paddr += 4) {
+				int value = Lib.bytesToInt(memory, paddr, 4);
+				Lib.bytesFromInt(memory, paddr, 4, value + 1);
+			}
+		}
+
+		return System.nanoTime() - start;
+	}
+
+	private long processorPasses(int passes) {
+		Processor processor = Machine.processor();
+		int length = memorySize();
+
+		long start = System.nanoTime();
+
+		for (int pass = 0; pass < passes; pass++) {
+			for (int paddr = 0; paddr < length; paddr += 4) {
+				int value = processor.readPhysInt(paddr);
+				processor.writePhysInt(paddr, value + 1);
+			}
+		}
+
+		return System.nanoTime() - start;
+	}
+
+	private int memorySize() {
+		return Machine.processor().getNumPhysPages() * Processor.pageSize;
+	}
+
+	private int numPasses;
+}
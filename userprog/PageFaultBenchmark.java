@@ -0,0 +1,85 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A kernel that measures how quickly the processor can deliver page faults to
+ * the kernel. It runs the processor with a page table in which every entry is
+ * invalid, and an exception handler that simply returns, so that every
+ * instruction fetch raises a page fault.
+ *
+ * <p>
+ * To use it, set <tt>Kernel.kernel</tt> to
+ * <tt>nachos.userprog.PageFaultBenchmark</tt>. The number of faults taken
+ * before halting is <tt>PageFaultBenchmark.numFaults</tt>.
+ */
+public class PageFaultBenchmark extends UserKernel {
+	/**
+	 * Allocate a new page fault benchmark kernel.
+	 */
+	public PageFaultBenchmark() {
+		super();
+	}
+
+	/**
+	 * Initialize this kernel.
+	 */
+	public void initialize(String[] args) {
+		super.initialize(args);
+
+		numFaults = Config.getInteger("PageFaultBenchmark.numFaults", 1000000);
+		Lib.assertTrue(numFaults > 0);
+	}
+
+	/**
+	 * Skip the console self test, which waits for input.
+	 */
+	public void selfTest() {
+	}
+
+	/**
+	 * Count a page fault and return to the faulting instruction, which will
+	 * fault again. Halts once <tt>numFaults</tt> faults have been taken.
+	 */
+	public void exceptionHandler() {
+		int cause = Machine.processor().readRegister(Processor.regCause);
+		Lib.assertTrue(cause == Processor.exceptionPageFault);
+
+		if (++faults < numFaults)
+			return;
+
+		long elapsed = System.currentTimeMillis() - startTime;
+
+		System.out.println("PageFaultBenchmark: " + faults + " faults in "
+				+ elapsed + " ms (" + (faults * 1000 / Math.max(elapsed, 1))
+				+ " faults/second)");
+
+		terminate();
+	}
+
+	/**
+	 * Run the processor against an all-invalid page table.
+	 */
+	public void run() {
+		Processor processor = Machine.processor();
+
+		TranslationEntry[] pageTable = new TranslationEntry[processor
+				.getNumPhysPages()];
+		for (int i = 0; i < pageTable.length; i++)
+			pageTable[i] = new TranslationEntry();
+		processor.setPageTable(pageTable);
+
+		for (int i = 0; i < Processor.numUserRegisters; i++)
+			processor.writeRegister(i, 0);
+
+		startTime = System.currentTimeMillis();
+		processor.run();
+	}
+
+	private int numFaults;
+
+	private long faults = 0;
+
+	private long startTime;
+}
@@ -46,6 +46,9 @@ public class SynchConsole {
 		readLock.acquire();
 
 		if (block || charAvailable) {
+			if (!charAvailable)
+				ThreadedKernel.scheduler.blockForIO(KThread.currentThread());
+
 			charAvailable = false;
 			readWait.P();
 
@@ -82,8 +85,13 @@ public class SynchConsole {
 	 */
 	public void writeByte(int value) {
 		writeLock.acquire();
+		boolean intStatus = Machine.interrupt().disable();
+
 		console.writeByte(value);
+		ThreadedKernel.scheduler.blockForIO(KThread.currentThread());
 		writeWait.P();
+
+		Machine.interrupt().restore(intStatus);
 		writeLock.release();
 	}
 
@@ -104,9 +112,9 @@ public class SynchConsole {
 
 	private SerialConsole console;
 
-	private Lock readLock = new Lock();
+	private Lock readLock = new Lock("SynchConsole.readLock");
 
-	private Lock writeLock = new Lock();
+	private Lock writeLock = new Lock("SynchConsole.writeLock");
 
 	private Semaphore readWait = new Semaphore(0);
 
@@ -134,20 +134,21 @@ public class UserProcess {
 	 */
 	public int readVirtualMemory(int vaddr, byte[] data, int offset, int length) {
 
-		byte[] mem = Machine.processor().getMemory();
+		Processor processor = Machine.processor();
+		int memorySize = processor.getNumPhysPages() * pageSize;
 		int bytes = 0;
 
 		Lib.assertTrue(offset >= 0 && length >= 0
 				&& offset + length <= data.length);
 
 		// for now, just assume that virtual addresses equal physical addresses
-		if (vaddr < 0 || vaddr >= mem.length) {
+		if (vaddr < 0 || vaddr >= memorySize) {
 			return 0;
 		}
 
-    bytes = Math.min(length, mem.length - vaddr);
+    bytes = Math.min(length, memorySize - vaddr);
 
-    System.arraycopy(mem, vaddr, data, offset, bytes);
+    processor.readPhysMemory(vaddr, data, offset, bytes);
 
 		// while (offset < data.length && length > 0) {
 
@@ -220,7 +221,6 @@ public class UserProcess {
 				&& offset + length <= data.length);
 
     int bytes = 0;
-		byte[] mem = Machine.processor().getMemory();
 
     while (offset < data.length && length > 0) {
 
@@ -247,7 +247,7 @@ public class UserProcess {
       int tSize = Math.min(data.length - offset, Math.min(length, (1024 - addOff)));
 
       // Copy array
-      System.arraycopy(mem, pAddress, data, offset, tSize);
+      Machine.processor().writePhysMemory(pAddress, data, offset, tSize);
 
       // Update vars
       vaddr = vaddr + tSize;
@@ -555,7 +555,7 @@ public class UserProcess {
 
     try {
       // read from virtual memory & attach info
-      String nameOfFile = readVirtualMemoryString(nameAddress, Machine.processor().getMemory().length - nameAddress - 1);
+      String nameOfFile = readVirtualMemoryString(nameAddress, Machine.processor().getNumPhysPages() * pageSize - nameAddress - 1);
 
       // check if the file is empty or if in the unlinked list
       if (unlinked.contains(nameOfFile) || nameOfFile == null) {
@@ -612,7 +612,7 @@ public class UserProcess {
     try {
 
       // read from virtual memory & attach info
-      String nameOfFile = readVirtualMemoryString(nameAddress, Machine.processor().getMemory().length - nameAddress - 1);
+      String nameOfFile = readVirtualMemoryString(nameAddress, Machine.processor().getNumPhysPages() * pageSize - nameAddress - 1);
 
       // check if the file is empty or if in the unlinked list
       if (unlinked.contains(nameOfFile) || nameOfFile == null) {